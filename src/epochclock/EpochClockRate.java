@@ -4,6 +4,7 @@ import beast.core.CalculationNode;
 import beast.core.Input;
 import beast.evolution.branchratemodel.BranchRateModel;
 import beast.evolution.tree.Node;
+import beast.evolution.tree.Tree;
 import beast.evolution.tree.coalescent.PopulationFunction;
 
 public class EpochClockRate extends BranchRateModel.Base {
@@ -11,17 +12,74 @@ public class EpochClockRate extends BranchRateModel.Base {
 	final public Input<PopulationFunction> timevaryingClockRatesInput = new Input<>("timevaryingClockRates",
 			"the Clock rates through time.", Input.Validate.REQUIRED);
 
+	final public Input<Tree> treeInput = new Input<>("tree",
+			"tree the rates are for, if given, the rates of all branches are recalculated at once "
+			+ "whenever the clock rates change", Input.Validate.OPTIONAL);
+
+	// rate of the branch above every node together with the heights it was calculated for and the
+	// version of the clock rates, such that only branches whose heights changed are recalculated
+	double[] branchRates, childHeights, parentHeights;
+	int[] versions;
+	int version = 0;
+	double[] storedBranchRates, storedChildHeights, storedParentHeights;
+	int[] storedVersions;
+	int storedVersion = 0;
+
 	@Override
 	public void initAndValidate() {
+		if (treeInput.get() != null)
+			ensureCapacity(treeInput.get().getNodeCount());
 	}
-	
+
 
 	@Override
-	public double getRateForBranch(Node node) {			
+	public double getRateForBranch(Node node) {
 		if (node.isRoot()) {
-			return 0.0;		
-		}	
-		return timevaryingClockRatesInput.get().getIntegral(node.getHeight(), node.getParent().getHeight())/(node.getParent().getHeight()-node.getHeight());
+			return 0.0;
+		}
+		final int nr = node.getNr();
+		if (branchRates == null || nr >= branchRates.length)
+			ensureCapacity(nr+1);
+		final double height = node.getHeight();
+		final double parentHeight = node.getParent().getHeight();
+		if (versions[nr] != version || childHeights[nr] != height || parentHeights[nr] != parentHeight)
+			updateBranch(nr, height, parentHeight);
+		return branchRates[nr];
+	}
+
+	private void updateBranch(int nr, double height, double parentHeight) {
+		// every branch looks up its epochs on its own, a cursor shared between branches would
+		// jump back and forth between the child and parent heights
+		double integral = timevaryingClockRatesInput.get().getIntegral(height, parentHeight);
+		branchRates[nr] = integral/(parentHeight-height);
+		childHeights[nr] = height;
+		parentHeights[nr] = parentHeight;
+		versions[nr] = version;
+	}
+
+	// recalculates all branches at once, such that the likelihood only reads the cache
+	private void updateAllBranches(Tree tree) {
+		final Node[] nodes = tree.getNodesAsArray();
+		ensureCapacity(nodes.length);
+		for (Node node : nodes) {
+			if (!node.isRoot())
+				updateBranch(node.getNr(), node.getHeight(), node.getParent().getHeight());
+		}
+	}
+
+	private void ensureCapacity(int n) {
+		if (branchRates != null && branchRates.length >= n)
+			return;
+		branchRates = new double[n];
+		childHeights = new double[n];
+		parentHeights = new double[n];
+		versions = new int[n];
+		storedBranchRates = new double[n];
+		storedChildHeights = new double[n];
+		storedParentHeights = new double[n];
+		storedVersions = new int[n];
+		// nothing is cached yet
+		version++;
 	}
 
 
@@ -29,11 +87,35 @@ public class EpochClockRate extends BranchRateModel.Base {
 	protected boolean requiresRecalculation() {
 		if (((CalculationNode) timevaryingClockRatesInput.get()).isDirtyCalculation()) {
 			// this is only called if any of its inputs is dirty, hence we need to recompute
+			version++;
+			if (treeInput.get() != null)
+				updateAllBranches(treeInput.get());
 			return true;
 		}
 
 		return false;
 	}
 
+	@Override
+	protected void store() {
+		if (branchRates != null) {
+			System.arraycopy(branchRates, 0, storedBranchRates, 0, branchRates.length);
+			System.arraycopy(childHeights, 0, storedChildHeights, 0, childHeights.length);
+			System.arraycopy(parentHeights, 0, storedParentHeights, 0, parentHeights.length);
+			System.arraycopy(versions, 0, storedVersions, 0, versions.length);
+		}
+		storedVersion = version;
+		super.store();
+	}
+
+	@Override
+	protected void restore() {
+		double[] tmp = branchRates; branchRates = storedBranchRates; storedBranchRates = tmp;
+		tmp = childHeights; childHeights = storedChildHeights; storedChildHeights = tmp;
+		tmp = parentHeights; parentHeights = storedParentHeights; storedParentHeights = tmp;
+		int[] tmp2 = versions; versions = storedVersions; storedVersions = tmp2;
+		version = storedVersion;
+		super.restore();
+	}
 
 }
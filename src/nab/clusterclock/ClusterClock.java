@@ -2,6 +2,7 @@ package nab.clusterclock;
 
 import java.io.PrintStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import beast.core.CalculationNode;
@@ -15,7 +16,6 @@ import beast.evolution.alignment.TaxonSet;
 import beast.evolution.branchratemodel.BranchRateModel;
 import beast.evolution.tree.Node;
 import beast.evolution.tree.Tree;
-import cern.colt.Arrays;
 
 public class ClusterClock extends BranchRateModel.Base implements Loggable {
 	
@@ -43,16 +43,35 @@ public class ClusterClock extends BranchRateModel.Base implements Loggable {
     // array of indices of taxa
     int[][] taxonIndex;
     
-	List<Integer> nodevals;
-	List<Integer> storedNodevals;
-	
-	List<Integer> cluster;
-	List<Integer> storedCluster;
+    // mrca of every taxon set and the nodes whose rate the set defines, i.e. the mrca if the rate is
+    // for the branch above it and all nodes between the taxa and the mrca, including it, otherwise
+    int[] mrca, storedMrca;
+    int[][] members, storedMembers;
+    int[] memberCount, storedMemberCount;
+    // taxon sets whose members differ from the stored ones
+    boolean[] outOfSync;
+
+    // cluster of every node, nr_categories-1 for the background, a node belongs to the first taxon set that contains it
+    int[] nodeCluster, storedNodeCluster;
+    int[] newCluster;
+
+    boolean[] touched;
+    int[] visited;
+    int visit = 0;
 	
 	int[] rateMap;
 	
-    double[] unscaledBranchRates;
+    // branch time of every node and total branch time of every cluster, such that the normalisation
+    // only sums over the clusters and a proposal only adds the change of the branches it moved
+    double[] branchTime, storedBranchTime;
+    double[] clusterTime, storedClusterTime;
+    double[] clusterRate, storedClusterRate;
+    // the totals are recomputed every so often, such that rounding errors do not accumulate
+    static final int RESYNC_INTERVAL = 1000;
+    int updatesSinceResync = 0;
+
     double scaleFactor = 1.0;
+    double storedScaleFactor = 1.0;
 
 
 	
@@ -99,9 +118,34 @@ public class ClusterClock extends BranchRateModel.Base implements Loggable {
 	        }
 		}
 		
-        unscaledBranchRates = new double[tree.getNodeCount()];
+		final int nodeCount = tree.getNodeCount();
+        branchTime = new double[nodeCount];
+        storedBranchTime = new double[nodeCount];
+        nodeCluster = new int[nodeCount];
+        storedNodeCluster = new int[nodeCount];
+        newCluster = new int[nodeCount];
+        clusterTime = new double[nr_categories];
+        storedClusterTime = new double[nr_categories];
+        clusterRate = new double[nr_categories];
+        storedClusterRate = new double[nr_categories];
+        touched = new boolean[nodeCount];
+        visited = new int[nodeCount];
+
+        mrca = new int[taxonIndex.length];
+        storedMrca = new int[taxonIndex.length];
+        memberCount = new int[taxonIndex.length];
+        storedMemberCount = new int[taxonIndex.length];
+        members = new int[taxonIndex.length][];
+        storedMembers = new int[taxonIndex.length][];
+        for (int i = 0; i < taxonIndex.length; i++) {
+        	// grown on demand, a taxon set that is not monophyletic has more members than taxa
+        	members[i] = new int[Math.max(1, 2*taxonIndex[i].length)];
+        	storedMembers[i] = new int[members[i].length];
+        }
+        outOfSync = new boolean[taxonIndex.length];
 
-		recomputeClusterMemberships();	
+		recomputeClusterMemberships(true);
+		resync();
 		recalculateScaleFactor();
 	}
 
@@ -110,78 +154,136 @@ public class ClusterClock extends BranchRateModel.Base implements Loggable {
 		if (node.isRoot()) {
 			return 0.0;		
 		}	
-        return unscaledBranchRates[node.getNr()] * scaleFactor;
+        return clusterRate[nodeCluster[node.getNr()]] * scaleFactor;
 	}
 
 	@Override
 	protected boolean requiresRecalculation() {
-		recomputeClusterMemberships();
+		if (useRootBranchInput.get().somethingIsDirty())
+			recomputeClusterMemberships(true);
+		else if (tree.somethingIsDirty())
+			recomputeClusterMemberships(false);
+		if (tree.somethingIsDirty())
+			updateBranchTimes();
+		if (++updatesSinceResync >= RESYNC_INTERVAL)
+			resync();
 		recalculateScaleFactor();
 		return true;
 	}
 
-	private void recomputeClusterMemberships() {
-		nodevals = new ArrayList<>();
-		cluster = new ArrayList<>();
+	/**
+	 * recomputes the members of the taxon sets whose subtree contains a node that got a new parent,
+	 * or of all taxon sets if all is true
+	 */
+	private void recomputeClusterMemberships(boolean all) {
+		if (!all)
+			markTouched(tree.getRoot());
+		boolean changed = false;
+		for (int i = 0; i < taxonIndex.length; i++) {
+			if (all || touched[mrca[i]]) {
+				recomputeMembers(i);
+				changed = true;
+			}
+		}
+		if (changed)
+			assignClusters();
+	}
+
+	// a subtree is touched if any of its nodes got a new parent, if taxa leave or enter the subtree
+	// below the mrca of a taxon set, a node below the mrca is always attached to a new parent
+	private boolean markTouched(Node node) {
+		boolean t = node.isDirty() == Tree.IS_FILTHY;
+		if (!node.isLeaf()) {
+			t |= markTouched(node.getLeft());
+			t |= markTouched(node.getRight());
+		}
+		touched[node.getNr()] = t;
+		return t;
+	}
+
+	// the members are the nodes visited by the pairwise mrca walk, as they were added to the
+	// list of node values before, which includes the mrca of a set of more than one taxon
+	private void recomputeMembers(int i) {
+		memberCount[i] = 0;
+		visit++;
+		if (useRootBranchInput.get().getArrayValue(i)>0.5) {
+			Node root = getCommonAncestorInternal(i, -1);
+			mrca[i] = root.getNr();
+			addMember(i, mrca[i]);
+		} else {
+			mrca[i] = getCommonAncestorInternal(i, i).getNr();
+		}
+		outOfSync[i] = true;
+	}
+
+	private void addMember(int i, int nr) {
+		if (visited[nr] == visit)
+			return;
+		visited[nr] = visit;
+		if (memberCount[i] == members[i].length)
+			members[i] = Arrays.copyOf(members[i], 2*memberCount[i]);
+		members[i][memberCount[i]++] = nr;
+	}
+
+	// reassigns the clusters and moves the branch time of every node that changed cluster
+	private void assignClusters() {
+		final int background = nr_categories-1;
+		Arrays.fill(newCluster, background);
 		for (int i = 0; i < taxonIndex.length; i++) {
-			if (useRootBranchInput.get().getArrayValue(i)>0.5) {
-				Node mrca = getCommonAncestorInternal(i, -1);
-				nodevals.add(mrca.getNr());
-				cluster.add(rateMap[i]);
-			}else {
-				getCommonAncestorInternal(i, rateMap[i]);
-			}					
+			for (int k = 0; k < memberCount[i]; k++) {
+				if (newCluster[members[i][k]] == background)
+					newCluster[members[i][k]] = rateMap[i];
+			}
+		}
+		for (int j = 0; j < nodeCluster.length; j++) {
+			if (newCluster[j] != nodeCluster[j]) {
+				clusterTime[nodeCluster[j]] -= branchTime[j];
+				clusterTime[newCluster[j]] += branchTime[j];
+				nodeCluster[j] = newCluster[j];
+			}
 		}
 	}
 	
-    private Node getCommonAncestorInternal(int index, int index2) {
+    private Node getCommonAncestorInternal(int index, int set) {
     	Node cur = tree.getNode(taxonIndex[index][0]);
 
         for (int k = 1; k < taxonIndex[index].length; ++k) {
-            cur = getCommonAncestor(cur, tree.getNode(taxonIndex[index][k]), index2);
+            cur = getCommonAncestor(cur, tree.getNode(taxonIndex[index][k]), set);
         }
     
         return cur;
     }
     
-    private void calculateUnscaledBranchRates(Node node) {
-    	
-		int index = nodevals.indexOf(node.getNr());
-		double rate;
-		if (index==-1) {// return background rate
-			rate = relative.getArrayValue(category.getValue(nr_categories-1));			
-		}else { // return the rate of the rate categorys
-			rate = relative.getArrayValue(category.getValue(cluster.get(index)));			
-		}
-
-
-        unscaledBranchRates[node.getNr()] = rate;
+    // adds the change in branch time of every node that moved or whose parent moved
+    private void updateBranchTimes() {
+    	for (int i = 0; i < branchTime.length; i++) {
+    		Node node = tree.getNode(i);
+    		if (node.isDirty() == Tree.IS_CLEAN && (node.isRoot() || node.getParent().isDirty() == Tree.IS_CLEAN))
+    			continue;
+    		double time = node.isRoot() ? 0.0 : node.getParent().getHeight() - node.getHeight();
+    		clusterTime[nodeCluster[i]] += time - branchTime[i];
+    		branchTime[i] = time;
+    	}
+    }
 
-        if (!node.isLeaf()) {
-            calculateUnscaledBranchRates(node.getLeft());
-            calculateUnscaledBranchRates(node.getRight());
-        }
+    private void resync() {
+    	Arrays.fill(clusterTime, 0.0);
+    	for (int i = 0; i < branchTime.length; i++) {
+    		Node node = tree.getNode(i);
+    		branchTime[i] = node.isRoot() ? 0.0 : node.getParent().getHeight() - node.getHeight();
+    		clusterTime[nodeCluster[i]] += branchTime[i];
+    	}
+    	updatesSinceResync = 0;
     }
 
-    
     private void recalculateScaleFactor() {
-        calculateUnscaledBranchRates(tree.getRoot());
-
-
         double timeTotal = 0.0;
         double branchTotal = 0.0;
 
-        for (int i = 0; i < tree.getNodeCount(); i++) {
-            Node node = tree.getNode(i);
-            if (!node.isRoot()) {
-
-                double branchInTime = node.getParent().getHeight() - node.getHeight();
-
-                double branchLength = branchInTime * unscaledBranchRates[node.getNr()];
-
-                timeTotal += branchInTime;
-                branchTotal += branchLength;
-            }
+        for (int c = 0; c < nr_categories; c++) {
+        	clusterRate[c] = relative.getArrayValue(category.getValue(c));
+        	timeTotal += clusterTime[c];
+        	branchTotal += clusterTime[c] * clusterRate[c];
         }
 
         scaleFactor = timeTotal / branchTotal;
@@ -190,20 +292,14 @@ public class ClusterClock extends BranchRateModel.Base implements Loggable {
     }
 
 
-    protected Node getCommonAncestor(Node n1, Node n2, int index) {
+    // if set is not -1, every node visited before the walk ends is a member of that taxon set
+    protected Node getCommonAncestor(Node n1, Node n2, int set) {
         while (n1 != n2) {
-        	if (index!=-1) {
-	        	if (!nodevals.contains(n1.getNr())) {
-	        		nodevals.add(n1.getNr());
-	        		cluster.add(index);
-	        	}
-	        	if (!nodevals.contains(n2.getNr())) {
-	        		nodevals.add(n2.getNr());
-	        		cluster.add(index);
-	        	}
+        	if (set!=-1) {
+        		addMember(set, n1.getNr());
+        		addMember(set, n2.getNr());
         	}
 
-        		
 	        double h1 = n1.getHeight();
 	        double h2 = n2.getHeight();
 	        if ( h1 < h2 ) {
@@ -245,10 +341,41 @@ public class ClusterClock extends BranchRateModel.Base implements Loggable {
         return n1;
     }
     
+    @Override
+    public void store() {
+    	for (int i = 0; i < taxonIndex.length; i++) {
+    		if (outOfSync[i]) {
+    			if (storedMembers[i].length < memberCount[i])
+    				storedMembers[i] = new int[members[i].length];
+    			System.arraycopy(members[i], 0, storedMembers[i], 0, memberCount[i]);
+    			outOfSync[i] = false;
+    		}
+    	}
+    	System.arraycopy(mrca, 0, storedMrca, 0, mrca.length);
+    	System.arraycopy(memberCount, 0, storedMemberCount, 0, memberCount.length);
+    	System.arraycopy(nodeCluster, 0, storedNodeCluster, 0, nodeCluster.length);
+    	System.arraycopy(branchTime, 0, storedBranchTime, 0, branchTime.length);
+    	System.arraycopy(clusterTime, 0, storedClusterTime, 0, clusterTime.length);
+    	System.arraycopy(clusterRate, 0, storedClusterRate, 0, clusterRate.length);
+    	storedScaleFactor = scaleFactor;
+    	super.store();
+    }
+
     @Override
     public void restore() {
-    	recomputeClusterMemberships();
-    	recalculateScaleFactor();
+    	// only the members of recomputed taxon sets differ, they stay out of sync after swapping
+    	for (int i = 0; i < taxonIndex.length; i++) {
+    		if (outOfSync[i]) {
+    			int[] tmp = members[i]; members[i] = storedMembers[i]; storedMembers[i] = tmp;
+    		}
+    	}
+    	int[] tmp = mrca; mrca = storedMrca; storedMrca = tmp;
+    	tmp = memberCount; memberCount = storedMemberCount; storedMemberCount = tmp;
+    	tmp = nodeCluster; nodeCluster = storedNodeCluster; storedNodeCluster = tmp;
+    	double[] tmp2 = branchTime; branchTime = storedBranchTime; storedBranchTime = tmp2;
+    	tmp2 = clusterTime; clusterTime = storedClusterTime; storedClusterTime = tmp2;
+    	tmp2 = clusterRate; clusterRate = storedClusterRate; storedClusterRate = tmp2;
+    	scaleFactor = storedScaleFactor;
         super.restore();
     }
 
@@ -0,0 +1,101 @@
+package nab.clusterclock;
+
+import beast.core.Description;
+import beast.core.Distribution;
+import beast.core.Evaluator;
+import beast.core.Input;
+import beast.core.Input.Validate;
+import beast.core.Operator;
+import beast.core.parameter.IntegerParameter;
+import beast.core.util.Log;
+import beast.util.Randomizer;
+
+
+@Description("Gibbs operator that selects a random dimension of the integer parameter, evaluates the posterior for every "
+		+ "value within the bounds and samples the new value from this conditional. Only the calculation nodes that depend "
+		+ "on the dimension are updated for every value, for the rate categories of a RandomCategoryClock these are the "
+		+ "partials on the path from the branch to the root if the clock is not normalized.")
+public class GibbsCategoryOperator extends Operator {
+    final public Input<IntegerParameter> parameterInput = new Input<>("parameter", "the parameter to operate on.", Validate.REQUIRED);
+    final public Input<Distribution> distributionInput = new Input<>("distribution", "distribution the conditional is calculated from, " +
+    		"usually the posterior or the tree likelihood, the MCMC only provides an evaluator for it.", Validate.REQUIRED);
+    final public Input<RandomCategoryClock> clockInput = new Input<>("clock", "clock whose rate categories are the parameter, " +
+    		"sets the bounds of the parameter before they are checked and is checked for normalization.");
+
+    // the conditional is calculated for every value within the bounds
+    static final int MAX_VALUES = 10000;
+
+    double[] logP = new double[0];
+
+    @Override
+	public void initAndValidate() {
+    	final IntegerParameter param = parameterInput.get();
+    	final long count = (long) param.getUpper() - param.getLower() + 1;
+    	if (count < 1 || count > MAX_VALUES)
+    		throw new IllegalArgumentException("GibbsCategoryOperator needs a parameter with at most " + MAX_VALUES +
+    				" values between its bounds, set the bounds of " + param.getID() + " or the clock input");
+    	if (clockInput.get() != null && clockInput.get().normalizeInput.get())
+    		Log.warning.println("GibbsCategoryOperator: the clock " + clockInput.get().getID() + " is normalized, such that " +
+    				"every value of the conditional recalculates all branches. Set normalize=\"false\" on the clock to only " +
+    				"recalculate the path from the branch to the root.");
+    }
+
+    @Override
+    public Distribution getEvaluatorDistribution() {
+    	return distributionInput.get();
+    }
+
+    /**
+     * without an evaluator, a new value is drawn uniformly within the bounds
+     */
+    @Override
+    public double proposal() {
+        IntegerParameter param = parameterInput.get(this);
+        final int index = Randomizer.nextInt(param.getDimension());
+        param.setValue(index, Randomizer.nextInt(param.getUpper() - param.getLower() + 1) + param.getLower());
+        return 0.0;
+    }
+
+    @Override
+    public double proposal(Evaluator evaluator) {
+    	if (evaluator == null)
+    		return proposal();
+        IntegerParameter param = parameterInput.get(this);
+        final int index = Randomizer.nextInt(param.getDimension());
+        final int lower = param.getLower();
+        final int count = param.getUpper() - lower + 1;
+        if (logP.length != count)
+        	logP = new double[count];
+
+        double max = Double.NEGATIVE_INFINITY;
+        for (int k = 0; k < count; k++) {
+        	param.setValue(index, lower + k);
+        	logP[k] = evaluator.evaluate();
+        	max = Math.max(max, logP[k]);
+        }
+        if (max == Double.NEGATIVE_INFINITY)
+        	return Double.NEGATIVE_INFINITY;
+
+        double total = 0.0;
+        for (int k = 0; k < count; k++) {
+        	logP[k] = Math.exp(logP[k] - max);
+        	total += logP[k];
+        }
+        double u = Randomizer.nextDouble() * total;
+        int k = 0;
+        while (k < count-1 && u >= logP[k]) {
+        	u -= logP[k];
+        	k++;
+        }
+        param.setValue(index, lower + k);
+
+        // the new value is drawn from the full conditional, such that it is always accepted
+        return Double.POSITIVE_INFINITY;
+    }
+
+    @Override
+    public void optimize(double logAlpha) {
+        // nothing to optimise
+    }
+
+}
@@ -1,5 +1,7 @@
 package nab.clusterclock;
 
+import java.text.DecimalFormat;
+
 import beast.core.Description;
 import beast.core.Input;
 import beast.core.Input.Validate;
@@ -10,12 +12,26 @@ import beast.core.util.Log;
 import beast.util.Randomizer;
 
 
-@Description("A uniform random operator that selects a random dimension of the integer parameter and picks a new random value within the bounds.")
+@Description("A uniform random operator that selects a random dimension of the integer parameter and picks a new random value within the bounds. "
+		+ "If a window size is given, the new value is instead at most the window size away from the current one.")
 public class IntUniformOperator extends Operator {
     final public Input<IntegerParameter> parameterInput = new Input<>("parameter", "the parameter to operate a random walk on.", Validate.REQUIRED);
     final public Input<BooleanParameter> indicatorInput = new Input<>("indicator", "indicates which of the dimension " +
             "of the parameters can be scaled. Only used when scaleAllIndependently=false and scaleAll=false. If not specified " +
             "it is assumed all dimensions are allowed to be scaled.");
+    final public Input<Double> windowSizeInput = new Input<>("windowSize", "if given, the new value is the current one plus or minus " +
+            "a uniform step between 1 and the window size instead of a uniform value within the bounds.");
+    final public Input<Boolean> optimiseInput = new Input<>("optimise", "flag to indicate that the window size is to be optimised", true);
+
+    // dimensions whose indicator is true, with the position of every dimension in it or -1
+    int[] active;
+    int[] position;
+    int activeCount;
+    boolean[] indicator;
+    boolean impliedOne;
+    boolean indicatorFixed;
+
+    double windowSize;
 
 
     @Override
@@ -27,10 +43,52 @@ public class IntUniformOperator extends Operator {
             if (!(indsDim == dataDim || indsDim + 1 == dataDim)) {
                 throw new IllegalArgumentException("indicator dimension not compatible from parameter dimension");
             }
+            impliedOne = indsDim + 1 == dataDim;
+            active = new int[dataDim];
+            position = new int[dataDim];
+            indicator = new boolean[indsDim];
+            activeCount = 0;
+            if (impliedOne) {
+            	position[0] = 0;
+            	active[activeCount++] = 0;
+            }
+            for (int i = 0; i < indsDim; i++)
+            	position[i + (impliedOne ? 1 : 0)] = -1;
+            updateActive(indicators);
+            // an indicator that is not estimated never changes, such that the active dimensions are only set up once
+            indicatorFixed = !indicators.isEstimatedInput.get();
         }
 
-    	
-    	
+        if (windowSizeInput.get() != null) {
+        	windowSize = windowSizeInput.get();
+        	if (windowSize < 1)
+        		throw new IllegalArgumentException("windowSize has to be at least 1");
+        }
+    }
+
+    // adds and removes the dimensions whose indicator changed since the last call. For an estimated
+    // indicator this is still a scan over all of its elements on every proposal: a parameter has no
+    // change counter, and its dirty flags are cleared after every step, before the next proposal
+    // could read them. Only the dimensions that differ from the primitive copy are changed.
+    private void updateActive(BooleanParameter indicators) {
+    	final int offset = impliedOne ? 1 : 0;
+    	for (int i = 0; i < indicator.length; i++) {
+    		final boolean value = indicators.getValue(i);
+    		if (value == indicator[i])
+    			continue;
+    		indicator[i] = value;
+    		final int d = i + offset;
+    		if (value) {
+    			position[d] = activeCount;
+    			active[activeCount++] = d;
+    		} else {
+    			// move the last active dimension into the gap
+    			final int last = active[--activeCount];
+    			active[position[d]] = last;
+    			position[last] = position[d];
+    			position[d] = -1;
+    		}
+    	}
     }
 
     /**
@@ -47,28 +105,11 @@ public class IntUniformOperator extends Operator {
         final int dim = param.getDimension();
 
     	if (indicators != null) {
-            final int dimCount = indicators.getDimension();
-            final Boolean[] indicator = indicators.getValues();
-            final boolean impliedOne = dimCount == (dim - 1);
-
-            // available bit locations. there can be hundreds of them. scan list only once.
-            final int[] loc = new int[dimCount + 1];
-            int locIndex = 0;
+    		if (!indicatorFixed)
+    			updateActive(indicators);
 
-            if (impliedOne) {
-                loc[locIndex] = 0;
-                ++locIndex;
-            }
-            for (int i = 0; i < dimCount; i++) {
-                if (indicator[i]) {
-                    loc[locIndex] = i + (impliedOne ? 1 : 0);
-                    ++locIndex;
-                }
-            }
-
-            if (locIndex > 0) {
-                final int rand = Randomizer.nextInt(locIndex);
-                index = loc[rand];
+            if (activeCount > 0) {
+                index = active[Randomizer.nextInt(activeCount)];
             } else {
                 return Double.NEGATIVE_INFINITY; // no active indicators
             }
@@ -78,15 +119,58 @@ public class IntUniformOperator extends Operator {
             index = Randomizer.nextInt(dim);
         }
     	
-        int newValue = Randomizer.nextInt(param.getUpper() - param.getLower() + 1) + param.getLower();
+        int newValue;
+        if (windowSizeInput.get() != null) {
+        	// symmetric step, values outside the bounds are rejected, in long such that unbounded parameters do not overflow
+        	final int window = (int) Math.max(1, Math.min(Math.round(windowSize), Integer.MAX_VALUE));
+        	final int step = Randomizer.nextInt(window) + 1;
+        	final long value = (long) param.getValue(index) + (Randomizer.nextBoolean() ? step : -step);
+        	if (value < param.getLower() || value > param.getUpper())
+        		return Double.NEGATIVE_INFINITY;
+        	newValue = (int) value;
+        } else {
+        	newValue = Randomizer.nextInt(param.getUpper() - param.getLower() + 1) + param.getLower();
+        }
         param.setValue(index, newValue);
 
         return 0.0;
     }
 
+    @Override
+    public double getCoercableParameterValue() {
+        return windowSize;
+    }
+
+    @Override
+    public void setCoercableParameterValue(double value) {
+        final IntegerParameter param = parameterInput.get();
+        final double range = (double) param.getUpper() - param.getLower();
+        windowSize = Math.max(1.0, Math.min(value, range));
+    }
+
     @Override
     public void optimize(double logAlpha) {
-        // nothing to optimise
+        if (windowSizeInput.get() != null && optimiseInput.get()) {
+            double delta = calcDelta(logAlpha);
+            delta += Math.log(windowSize);
+            setCoercableParameterValue(Math.exp(delta));
+        }
+    }
+
+    @Override
+    public String getPerformanceSuggestion() {
+        if (windowSizeInput.get() == null)
+            return "";
+        double prob = m_nNrAccepted / (m_nNrAccepted + m_nNrRejected + 0.0);
+        double targetProb = getTargetAcceptanceProbability();
+        double ratio = prob / targetProb;
+        if (ratio > 2.0) ratio = 2.0;
+        if (ratio < 0.5) ratio = 0.5;
+        double newWindowSize = windowSize * ratio;
+        DecimalFormat formatter = new DecimalFormat("#.###");
+        if (prob < 0.10 || prob > 0.40)
+            return "Try setting windowSize to about " + formatter.format(newWindowSize);
+        return "";
     }
 
 } // class IntUniformOperator
\ No newline at end of file
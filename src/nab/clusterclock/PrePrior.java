@@ -2,6 +2,7 @@ package nab.clusterclock;
 
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Random;
 
@@ -22,6 +23,17 @@ public class PrePrior extends Distribution {
      * shadows distInput *
      */
 
+    // log pdf of every value and the number of elements of x with that value, such that the log
+    // probability is a sum over the values and a changed element only moves one count
+    double[] logPdf = new double[0];
+    double[] storedLogPdf = new double[0];
+    int[] values = new int[0];
+    int[] counts = new int[0];
+    boolean needsFullUpdate = true;
+    // changed elements and their previous values since the last store, undone on restore
+    int[] journal = new int[0];
+    int journalSize = 0;
+
     @Override
     public void initAndValidate() {
         calculateLogP();
@@ -29,13 +41,79 @@ public class PrePrior extends Distribution {
 
     @Override
     public double calculateLogP() {
+    	final IntegerParameter x = m_x.get();
+    	final RealParameter pdf = pdfInput.get();
+    	if (needsFullUpdate || values.length != x.getDimension() || logPdf.length != pdf.getDimension()) {
+    		updateTable();
+    		counts = new int[logPdf.length];
+    		values = new int[x.getDimension()];
+    		for (int i = 0; i < values.length; i++) {
+    			values[i] = x.getValue(i);
+    			counts[values[i]]++;
+    		}
+    		journalSize = 0;
+    		needsFullUpdate = false;
+    	} else {
+    		if (pdf.somethingIsDirty())
+    			updateTable();
+    		if (x.somethingIsDirty())
+    			updateCounts(x);
+    	}
+
     	logP = 0.0;
-    	for (int i = 0; i < m_x.get().getDimension(); i++) {
-    		logP += Math.log(pdfInput.get().getArrayValue((int) m_x.get().getArrayValue(i)));
+    	for (int k = 0; k < counts.length; k++) {
+    		if (counts[k] > 0)
+    			logP += counts[k] * logPdf[k];
     	}
         return logP;
     }
 
+    private void updateTable() {
+    	final RealParameter pdf = pdfInput.get();
+    	if (logPdf.length != pdf.getDimension())
+    		logPdf = new double[pdf.getDimension()];
+    	for (int k = 0; k < logPdf.length; k++)
+    		logPdf[k] = Math.log(pdf.getArrayValue(k));
+    }
+
+    private void updateCounts(IntegerParameter x) {
+    	for (int i = 0; i < values.length; i++) {
+    		if (x.isDirty(i) && x.getValue(i) != values[i]) {
+    			if (2*journalSize + 2 > journal.length)
+    				journal = Arrays.copyOf(journal, Math.max(16, 2*journal.length));
+    			journal[2*journalSize] = i;
+    			journal[2*journalSize+1] = values[i];
+    			journalSize++;
+    			setValue(i, x.getValue(i));
+    		}
+    	}
+    }
+
+    private void setValue(int i, int value) {
+    	counts[values[i]]--;
+    	counts[value]++;
+    	values[i] = value;
+    }
+
+    @Override
+    public void store() {
+    	if (storedLogPdf.length != logPdf.length)
+    		storedLogPdf = new double[logPdf.length];
+    	System.arraycopy(logPdf, 0, storedLogPdf, 0, logPdf.length);
+    	journalSize = 0;
+    	super.store();
+    }
+
+    @Override
+    public void restore() {
+    	// undo the changes in reverse order
+    	for (int j = journalSize-1; j >= 0; j--)
+    		setValue(journal[2*j], journal[2*j+1]);
+    	journalSize = 0;
+    	double[] tmp = logPdf; logPdf = storedLogPdf; storedLogPdf = tmp;
+    	super.restore();
+    }
+
     /**
      * return name of the parameter this prior is applied to *
      */
@@ -2,6 +2,7 @@ package nab.clusterclock;
 
 import java.io.PrintStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import beast.core.CalculationNode;
@@ -15,7 +16,6 @@ import beast.evolution.alignment.TaxonSet;
 import beast.evolution.branchratemodel.BranchRateModel;
 import beast.evolution.tree.Node;
 import beast.evolution.tree.Tree;
-import cern.colt.Arrays;
 
 public class RandomCategoryClock extends BranchRateModel.Base {
 	
@@ -26,6 +26,10 @@ public class RandomCategoryClock extends BranchRateModel.Base {
 			"the relative Clock Rate of an individual cluster.", Input.Validate.REQUIRED);
 	final public Input<IntegerParameter> rateCategoryInput = new Input<>("rateCategory",
 			"the rate category a cluster belongs to.", Input.Validate.REQUIRED);	
+	final public Input<Boolean> normalizeInput = new Input<>("normalize",
+			"if true, the rates are scaled such that the mean rate over all branches is the mean clock rate. If false, "
+			+ "the rate of a branch only depends on its own category, such that changing it only changes the partials "
+			+ "between the branch and the root.", true);
 
     
     int nr_categories;
@@ -33,8 +37,19 @@ public class RandomCategoryClock extends BranchRateModel.Base {
     RealParameter relative;
     IntegerParameter category;
        	
-    double[] unscaledBranchRates;
+    Tree tree;
+
+    // category and branch time of every node and total branch time of every rate category, such that the
+    // normalisation only sums over the categories and a proposal only adds the change of what it moved
+    int[] nodeCategory, storedNodeCategory;
+    double[] branchTime, storedBranchTime;
+    double[] categoryTime, storedCategoryTime;
+    // the totals are recomputed every so often, such that rounding errors do not accumulate
+    static final int RESYNC_INTERVAL = 1000;
+    int updatesSinceResync = 0;
+
     double scaleFactor = 1.0;
+    double storedScaleFactor = 1.0;
 
 
 	
@@ -44,13 +59,21 @@ public class RandomCategoryClock extends BranchRateModel.Base {
 		mean = meanClockRateInput.get();
 		relative = relativeClockRateInput.get();
 		category = rateCategoryInput.get();
+		tree = treeInput.get();
 		
-		category.setDimension(treeInput.get().getNodeCount());
+		category.setDimension(tree.getNodeCount());
 		category.setLower(0);
 		category.setUpper(relative.getDimension()-1);		
 		
-        unscaledBranchRates = new double[treeInput.get().getNodeCount()];
-
+		final int nodeCount = tree.getNodeCount();
+		nodeCategory = new int[nodeCount];
+		storedNodeCategory = new int[nodeCount];
+		branchTime = new double[nodeCount];
+		storedBranchTime = new double[nodeCount];
+		categoryTime = new double[relative.getDimension()];
+		storedCategoryTime = new double[relative.getDimension()];
+
+		resync();
 		recalculateScaleFactor();
 	}
 
@@ -59,55 +82,87 @@ public class RandomCategoryClock extends BranchRateModel.Base {
 		if (node.isRoot()) {
 			return 0.0;		
 		}	
-        return unscaledBranchRates[node.getNr()] * scaleFactor;
+        return relative.getArrayValue(nodeCategory[node.getNr()]) * scaleFactor;
 	}
 
 	@Override
 	protected boolean requiresRecalculation() {
+		if (category.somethingIsDirty())
+			updateCategories();
+		if (tree.somethingIsDirty())
+			updateBranchTimes();
+		if (++updatesSinceResync >= RESYNC_INTERVAL)
+			resync();
 		recalculateScaleFactor();
 		return true;
 	}
 
-    
-    private void calculateUnscaledBranchRates(Node node) {
-        unscaledBranchRates[node.getNr()] = relative.getArrayValue(category.getValue(node.getNr()));
-
-        if (!node.isLeaf()) {
-            calculateUnscaledBranchRates(node.getLeft());
-            calculateUnscaledBranchRates(node.getRight());
-        }
+    // moves the branch time of every node whose category changed
+    private void updateCategories() {
+    	for (int i = 0; i < nodeCategory.length; i++) {
+    		if (category.isDirty(i)) {
+    			int k = category.getValue(i);
+    			categoryTime[nodeCategory[i]] -= branchTime[i];
+    			categoryTime[k] += branchTime[i];
+    			nodeCategory[i] = k;
+    		}
+    	}
     }
 
-    
-    private void recalculateScaleFactor() {
-        calculateUnscaledBranchRates(treeInput.get().getRoot());
+    // adds the change in branch time of every node that moved or whose parent moved
+    private void updateBranchTimes() {
+    	for (int i = 0; i < branchTime.length; i++) {
+    		Node node = tree.getNode(i);
+    		if (node.isDirty() == Tree.IS_CLEAN && (node.isRoot() || node.getParent().isDirty() == Tree.IS_CLEAN))
+    			continue;
+    		double time = node.isRoot() ? 0.0 : node.getParent().getHeight() - node.getHeight();
+    		categoryTime[nodeCategory[i]] += time - branchTime[i];
+    		branchTime[i] = time;
+    	}
+    }
 
+    private void resync() {
+    	Arrays.fill(categoryTime, 0.0);
+    	for (int i = 0; i < branchTime.length; i++) {
+    		Node node = tree.getNode(i);
+    		nodeCategory[i] = category.getValue(i);
+    		branchTime[i] = node.isRoot() ? 0.0 : node.getParent().getHeight() - node.getHeight();
+    		categoryTime[nodeCategory[i]] += branchTime[i];
+    	}
+    	updatesSinceResync = 0;
+    }
 
+    private void recalculateScaleFactor() {
         double timeTotal = 0.0;
         double branchTotal = 0.0;
 
-        for (int i = 0; i < treeInput.get().getNodeCount(); i++) {
-            Node node = treeInput.get().getNode(i);
-            if (!node.isRoot()) {
-
-                double branchInTime = node.getParent().getHeight() - node.getHeight();
-
-                double branchLength = branchInTime * unscaledBranchRates[node.getNr()];
-
-                timeTotal += branchInTime;
-                branchTotal += branchLength;
-            }
+        for (int k = 0; k < categoryTime.length; k++) {
+        	timeTotal += categoryTime[k];
+        	branchTotal += categoryTime[k] * relative.getArrayValue(k);
         }
 
-        scaleFactor = timeTotal / branchTotal;
-
-        scaleFactor *= mean.getValue();
+        if (normalizeInput.get())
+        	scaleFactor = timeTotal / branchTotal * mean.getValue();
+        else
+        	scaleFactor = mean.getValue();
     }
 
     
+    @Override
+    public void store() {
+    	System.arraycopy(nodeCategory, 0, storedNodeCategory, 0, nodeCategory.length);
+    	System.arraycopy(branchTime, 0, storedBranchTime, 0, branchTime.length);
+    	System.arraycopy(categoryTime, 0, storedCategoryTime, 0, categoryTime.length);
+    	storedScaleFactor = scaleFactor;
+    	super.store();
+    }
+
     @Override
     public void restore() {
-    	recalculateScaleFactor();
+    	int[] tmp = nodeCategory; nodeCategory = storedNodeCategory; storedNodeCategory = tmp;
+    	double[] tmp2 = branchTime; branchTime = storedBranchTime; storedBranchTime = tmp2;
+    	tmp2 = categoryTime; categoryTime = storedCategoryTime; storedCategoryTime = tmp2;
+    	scaleFactor = storedScaleFactor;
         super.restore();
     }
 
@@ -2,7 +2,7 @@ package nab.clusterclock;
 
 import java.io.PrintStream;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
 import java.util.List;
 
 import beast.core.BEASTObject;
@@ -14,6 +14,7 @@ import beast.core.Input.Validate;
 import beast.core.Loggable;
 import beast.core.parameter.BooleanParameter;
 import beast.core.parameter.IntegerParameter;
+import beast.core.parameter.Parameter;
 import beast.evolution.tree.Tree;
 
 
@@ -30,6 +31,19 @@ public class Unique extends CalculationNode implements Function, Loggable {
     double unique = 0;
     double storedUnique = 0;
 
+    // integer mode: value of every element and the number of elements with every value, i.e. counts[value-offset],
+    // such that a changed element only updates two counts
+    int[] values;
+    int[] counts = new int[0];
+    int offset = 0;
+    int distinct = 0;
+    // changed elements and their previous values since the last store, undone on restore
+    int[] journal = new int[0];
+    int journalSize = 0;
+
+    // double mode: values are sorted in place
+    double[] sorted = new double[0];
+
     @Override
     public void initAndValidate() {
         List<Function> valuable = functionInput.get();
@@ -58,19 +72,135 @@ public class Unique extends CalculationNode implements Function, Loggable {
      * do the actual work, and reset flag *
      */
     void compute() {
-    	unique = 1;
-    	List<Double> values = new ArrayList<>();
+    	if (mode == Mode.integer_mode) {
+    		updateCounts();
+    		unique = distinct;
+    	} else {
+    		unique = countSorted();
+    	}
+        needsRecompute = false;
+    }
+
+    private int getTotalDimension() {
+    	int dim = 0;
+        for (Function v : functionInput.get())
+        	dim += v.getDimension();
+        return dim;
+    }
+
+    private void updateCounts() {
+    	if (values == null || values.length != getTotalDimension()) {
+    		initCounts();
+    		return;
+    	}
+    	// every element is compared, the dirty flags may already be cleared when this is computed lazily
+    	int k = 0;
+        for (Function v : functionInput.get()) {
+        	compareAll(v, k);
+        	k += v.getDimension();
+        }
+    }
+
+    // only called from requiresRecalculation(), where the dirty flags of the arguments are valid
+    private void updateDirty() {
+    	int k = 0;
+        for (Function v : functionInput.get()) {
+        	final int dim = v.getDimension();
+        	if (v instanceof Parameter.Base<?>) {
+        		final Parameter.Base<?> p = (Parameter.Base<?>) v;
+        		if (p.somethingIsDirty()) {
+        			boolean flagged = false;
+        			for (int i = 0; i < dim; i++) {
+        				if (p.isDirty(i)) {
+        					flagged = true;
+        					update(k + i, (int) v.getArrayValue(i));
+        				}
+        			}
+        			// changed as a whole without flagging single elements
+        			if (!flagged)
+        				compareAll(v, k);
+        		}
+        	} else {
+        		compareAll(v, k);
+        	}
+        	k += dim;
+        }
+    }
+
+    private void compareAll(Function v, int k) {
+    	final int dim = v.getDimension();
+    	for (int i = 0; i < dim; i++)
+    		update(k + i, (int) v.getArrayValue(i));
+    }
+
+    // sets element k and journals its previous value for restore()
+    private void update(int k, int value) {
+    	if (value == values[k])
+    		return;
+    	if (2*journalSize + 2 > journal.length)
+    		journal = Arrays.copyOf(journal, Math.max(16, 2*journal.length));
+    	journal[2*journalSize] = k;
+    	journal[2*journalSize+1] = values[k];
+    	journalSize++;
+    	setValue(k, value);
+    }
+
+    private void initCounts() {
+    	values = new int[getTotalDimension()];
+    	int k = 0;
+    	int min = Integer.MAX_VALUE, max = Integer.MIN_VALUE;
         for (Function v : functionInput.get()) {
-            for (int i = 0; i < v.getDimension(); i++) {
-            	values.add(v.getArrayValue(i));
+            for (int i = 0; i < v.getDimension(); i++, k++) {
+            	values[k] = (int) v.getArrayValue(i);
+            	min = Math.min(min, values[k]);
+            	max = Math.max(max, values[k]);
             }
         }
-        Collections.sort(values);
-        for (int i = 1; i < values.size(); i++) {
-        	if (Math.abs(values.get(i-1)-values.get(i))>0.5)
-                unique++;
+        offset = values.length > 0 ? min : 0;
+        counts = new int[values.length > 0 ? max - min + 1 : 0];
+        distinct = 0;
+        for (int value : values)
+        	add(value);
+        journalSize = 0;
+    }
+
+    private void setValue(int k, int value) {
+    	if (--counts[values[k] - offset] == 0)
+    		distinct--;
+    	add(value);
+    	values[k] = value;
+    }
+
+    private void add(int value) {
+    	if (value < offset || value - offset >= counts.length) {
+    		// grow the histogram to include the value
+    		final int min = Math.min(offset, value);
+    		final int max = Math.max(offset + counts.length - 1, value);
+    		final int[] newCounts = new int[max - min + 1];
+    		System.arraycopy(counts, 0, newCounts, offset - min, counts.length);
+    		counts = newCounts;
+    		offset = min;
+    	}
+    	if (counts[value - offset]++ == 0)
+    		distinct++;
+    }
+
+    private int countSorted() {
+    	final int dim = getTotalDimension();
+    	if (sorted.length != dim)
+    		sorted = new double[dim];
+    	int k = 0;
+        for (Function v : functionInput.get()) {
+            for (int i = 0; i < v.getDimension(); i++)
+            	sorted[k++] = v.getArrayValue(i);
+        }
+        Arrays.sort(sorted);
+        int count = 1;
+        for (int i = 1; i < dim; i++) {
+        	if (Math.abs(sorted[i-1]-sorted[i])>0.5)
+        		count++;
         }
-        needsRecompute = false;
+        return count;
     }
 
     @Override
@@ -87,18 +217,30 @@ public class Unique extends CalculationNode implements Function, Loggable {
     @Override
     public void store() {
         storedUnique = unique;
+        journalSize = 0;
         super.store();
     }
 
     @Override
     public void restore() {
     	unique = storedUnique;
+    	// undo the changes in reverse order
+    	for (int j = journalSize-1; j >= 0; j--)
+    		setValue(journal[2*j], journal[2*j+1]);
+    	journalSize = 0;
         super.restore();
     }
 
     @Override
     public boolean requiresRecalculation() {
-        needsRecompute = true;
+    	if (mode == Mode.integer_mode && values != null && values.length == getTotalDimension()) {
+    		// the changed elements are applied right away, while their dirty flags are set
+    		updateDirty();
+    		unique = distinct;
+    		needsRecompute = false;
+    	} else {
+    		needsRecompute = true;
+    	}
         return true;
     }
 
@@ -112,18 +254,7 @@ public class Unique extends CalculationNode implements Function, Loggable {
 
     @Override
     public void log(long sampleNr, PrintStream out) {
-        double sum = 1;
-    	List<Double> values = new ArrayList<>();
-        for (Function v : functionInput.get()) {
-            for (int i = 0; i < v.getDimension(); i++) {
-            	values.add(v.getArrayValue(i));
-            }
-        }
-        Collections.sort(values);
-        for (int i = 1; i < values.size(); i++) {
-        	if (Math.abs(values.get(i-1)-values.get(i))>0.5)
-        		sum++;
-        }
+        double sum = getArrayValue();
 
         out.print((int) sum + "\t");
     }
@@ -0,0 +1,106 @@
+package nab.multitree;
+
+
+/**
+ * Keeps the lineage state probabilities computed during the forward pass of
+ * MappedMultitreeMascot. For every lineage, the times and state probabilities
+ * at which they were recorded are stored in flat arrays that are reused between
+ * evaluations, such that the backward (mapping) pass can be run without having
+ * to integrate the structured coalescent again.
+ *
+ * @author Nicola Felix Mueller
+ */
+public class ForwardTrajectory {
+
+	final int states;
+
+	// times and state probabilities per lineage, probabilities are stored as [point*states + state]
+	double[][] times;
+	double[][] probs;
+	int[] counts;
+
+	// tree and rates interval at which the forward pass ended, used to start the backward pass
+	int treeInterval;
+	int ratesInterval;
+	double lastRateShift;
+
+	public ForwardTrajectory(int lineageCount, int states) {
+		this.states = states;
+		times = new double[lineageCount][];
+		probs = new double[lineageCount][];
+		counts = new int[lineageCount];
+		for (int i = 0; i < lineageCount; i++) {
+			times[i] = new double[16];
+			probs[i] = new double[16*states];
+		}
+	}
+
+	/**
+	 * starts a new lineage, removing any points previously stored for it
+	 */
+	public void addLineage(int nr) {
+		counts[nr] = 0;
+	}
+
+	/**
+	 * adds the state probabilities of lineage nr at time, read from linProbs starting at offset
+	 */
+	public void add(int nr, double time, double[] linProbs, int offset) {
+		int c = counts[nr];
+		if (c == times[nr].length) {
+			double[] newTimes = new double[2*c];
+			System.arraycopy(times[nr], 0, newTimes, 0, c);
+			times[nr] = newTimes;
+			double[] newProbs = new double[2*c*states];
+			System.arraycopy(probs[nr], 0, newProbs, 0, c*states);
+			probs[nr] = newProbs;
+		}
+		times[nr][c] = time;
+		System.arraycopy(linProbs, offset, probs[nr], c*states, states);
+		counts[nr] = c+1;
+	}
+
+	public int getCount(int nr) {
+		return counts[nr];
+	}
+
+	public double getTime(int nr, int i) {
+		return times[nr][i];
+	}
+
+	public double getProb(int nr, int i, int state) {
+		return probs[nr][i*states + state];
+	}
+
+	/**
+	 * copies the state probabilities of point i of lineage nr into target
+	 */
+	public void getProbs(int nr, int i, double[] target) {
+		System.arraycopy(probs[nr], i*states, target, 0, states);
+	}
+
+	/**
+	 * returns the index of the point of lineage nr recorded at time, or -1 if there is none
+	 */
+	public int indexOf(int nr, double time) {
+		for (int i = 0; i < counts[nr]; i++)
+			if (times[nr][i] == time)
+				return i;
+		for (int i = 0; i < counts[nr]; i++)
+			if (Math.abs(times[nr][i] - time) < 1e-10)
+				return i;
+		return -1;
+	}
+
+	/**
+	 * returns the longest time between two consecutive points of any lineage
+	 */
+	public double getMaxStep() {
+		double maxStep = 0;
+		for (int nr = 0; nr < counts.length; nr++)
+			for (int i = 1; i < counts[nr]; i++)
+				maxStep = Math.max(maxStep, Math.abs(times[nr][i] - times[nr][i-1]));
+		return maxStep;
+	}
+
+}
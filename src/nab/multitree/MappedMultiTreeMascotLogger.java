@@ -1,11 +1,13 @@
 package nab.multitree;
 
 import java.io.PrintStream;
+import java.util.List;
 
 import beast.core.CalculationNode;
 import beast.core.Input;
 import beast.core.Loggable;
 import beast.evolution.tree.Node;
+import beast.evolution.tree.Tree;
 
 public class MappedMultiTreeMascotLogger extends CalculationNode implements Loggable {
 	
@@ -41,18 +43,28 @@ public class MappedMultiTreeMascotLogger extends CalculationNode implements Logg
         			mmm.treeIntervals.offset[i] + mmm.treeIntervals.rootLengthInput.get().get(i).getValue(), 
         			maxHeight);
         }
+        for (int m = 0; m < mmm.mappings.length; m++) {
+        	if (m > 0)
+        		out.println();
+	        out.print("tree " + mmm.getTreeName(sample, m) + " = ");
+	        out.print(getTreeString(mmm.mappings[m].getMappedTrees(), maxHeight));
+	        out.print(";");
+        }
+	}
+	
+	private String getTreeString(List<Tree> mappedTrees, double maxHeight) {
         String tree_string = "rem";
 
         for (int i = 0; i < mmm.treeIntervals.treeInput.get().size();i++) {
         	if (mmm.treeIntervals.treeInput.get().get(i).getExternalNodes().size()>=minClusterSizeInput.get()) {
-        		Node root = getActualRoot(mmm.mappedTrees.get(i).getRoot());
+        		Node root = getActualRoot(mappedTrees.get(i).getRoot());
         		String subtree_str = toNewick(root, root.getHeight());
         		subtree_str = subtree_str+";";
         		// remove the last bit of the tree string that indicates it
         		subtree_str = subtree_str.replace("]:0.0;", "");
-        		subtree_str = subtree_str+ ",originHeight="+ (mmm.treeIntervals.rootLengthInput.get().get(i).getValue()+mmm.mappedTrees.get(i).getRoot().getHeight());
+        		subtree_str = subtree_str+ ",originHeight="+ (mmm.treeIntervals.rootLengthInput.get().get(i).getValue()+mappedTrees.get(i).getRoot().getHeight());
 
-				subtree_str = subtree_str+ ",origin" + mmm.dynamics.typeTraitInput.getName() + "=" + mmm.dynamics.getStringStateValue((int) mmm.mappedTrees.get(i).getRoot().getLeft().getMetaData("location"));
+				subtree_str = subtree_str+ ",origin" + mmm.dynamics.typeTraitInput.getName() + "=" + mmm.dynamics.getStringStateValue((int) mappedTrees.get(i).getRoot().getLeft().getMetaData("location"));
         		subtree_str = subtree_str + "]:" + (maxHeight-root.getHeight()-mmm.treeIntervals.offset[i]);
         		tree_string = tree_string+"," +subtree_str;
         	}
@@ -60,10 +72,7 @@ public class MappedMultiTreeMascotLogger extends CalculationNode implements Logg
         tree_string = tree_string.replace("rem,", "(");
         tree_string = tree_string + "):0.0";
         tree_string = tree_string.replace("[&]", "");
-        out.print("tree STATE_" + sample + " = ");
-        out.print(tree_string);
-        out.print(";");	        		
-		
+        return tree_string;
 	}
 
 
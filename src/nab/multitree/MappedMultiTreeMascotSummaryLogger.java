@@ -0,0 +1,108 @@
+package nab.multitree;
+
+import java.io.PrintStream;
+import java.util.Arrays;
+
+import beast.core.CalculationNode;
+import beast.core.Description;
+import beast.core.Input;
+import beast.core.Loggable;
+
+@Description("Logs the number of migration events between states, the time spent in every state and the number of "
+		+ "introductions from every state of the stochastic mappings of a MappedMultitreeMascot, averaged over the mappings")
+public class MappedMultiTreeMascotSummaryLogger extends CalculationNode implements Loggable {
+
+	final public Input<MappedMultitreeMascot> mappedMascotInput = new Input<>("mappedMultitreeMascot",
+			"mapped multi tree mascot from which the mappings are summarized", Input.Validate.REQUIRED);
+
+	final public Input<Boolean> perEpochInput = new Input<>("perEpoch",
+			"if true, the time spent in every state is logged for every rates epoch as well", true);
+
+	MappedMultitreeMascot mmm;
+	int states;
+
+	double[] migrationCounts;
+	double[] dwellTimes;
+	double[] introductions;
+
+	@Override
+	public void initAndValidate() {
+		mmm = mappedMascotInput.get();
+		states = mmm.states;
+		migrationCounts = new double[states*states];
+		introductions = new double[states];
+	}
+
+	@Override
+	public void init(PrintStream out) {
+		String id = getID() == null ? "mapping" : getID();
+		for (int a = 0; a < states; a++)
+			for (int b = 0; b < states; b++)
+				if (a != b)
+					out.print(id + ".migrations." + mmm.dynamics.getStringStateValue(a) + "_to_" +
+							mmm.dynamics.getStringStateValue(b) + "\t");
+
+		for (int a = 0; a < states; a++)
+			out.print(id + ".dwellTime." + mmm.dynamics.getStringStateValue(a) + "\t");
+
+		if (perEpochInput.get()) {
+			for (int e = 0; e < mmm.dynamics.getEpochCount(); e++)
+				for (int a = 0; a < states; a++)
+					out.print(id + ".dwellTime." + mmm.dynamics.getStringStateValue(a) + ".epoch" + e + "\t");
+		}
+
+		for (int a = 0; a < states; a++)
+			out.print(id + ".introductions." + mmm.dynamics.getStringStateValue(a) + "\t");
+	}
+
+	@Override
+	public void log(long sample, PrintStream out) {
+		mmm.calcForLogging(sample);
+
+		int epochs = mmm.dynamics.getEpochCount();
+		if (dwellTimes == null || dwellTimes.length != epochs*states)
+			dwellTimes = new double[epochs*states];
+
+		Arrays.fill(migrationCounts, 0.0);
+		Arrays.fill(dwellTimes, 0.0);
+		Arrays.fill(introductions, 0.0);
+
+		// sum over the mappings, read directly from the event arrays
+		for (StochasticMapping mapping : mmm.mappings) {
+			for (int i = 0; i < mapping.getEventCount(); i++)
+				migrationCounts[mapping.getEventFrom(i)*states + mapping.getEventTo(i)]++;
+			for (int e = 0; e < Math.min(epochs, mapping.getEpochCount()); e++)
+				for (int a = 0; a < states; a++)
+					dwellTimes[e*states + a] += mapping.getDwellTime(e, a);
+			for (int i = 0; i < mapping.originStates.length; i++)
+				introductions[mapping.getOriginState(i)]++;
+		}
+
+		double m = mmm.mappings.length;
+		for (int a = 0; a < states; a++)
+			for (int b = 0; b < states; b++)
+				if (a != b)
+					out.print(migrationCounts[a*states + b]/m + "\t");
+
+		for (int a = 0; a < states; a++) {
+			double dwell = 0;
+			for (int e = 0; e < epochs; e++)
+				dwell += dwellTimes[e*states + a];
+			out.print(dwell/m + "\t");
+		}
+
+		if (perEpochInput.get()) {
+			for (int e = 0; e < epochs; e++)
+				for (int a = 0; a < states; a++)
+					out.print(dwellTimes[e*states + a]/m + "\t");
+		}
+
+		for (int a = 0; a < states; a++)
+			out.print(introductions[a]/m + "\t");
+	}
+
+	@Override
+	public void close(PrintStream out) {
+	}
+
+}
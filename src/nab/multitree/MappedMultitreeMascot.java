@@ -8,6 +8,12 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 //import org.jblas.DoubleMatrix;
 
@@ -60,18 +66,38 @@ public class MappedMultitreeMascot extends MultitreeMascot implements Loggable {
 			false);
     final public Input<Integer> minClusterSizeInput = new Input<>("minClusterSize", 
     		"A population size model", 0);
-
-
-	Map<Integer, List<double[]>> intermediateStateProbs;
-	Map<Integer, List<Double>> intermediateTimes;
+	public Input<Boolean> reuseForwardPassInput = new Input<>("reuseForwardPass",
+			"if true, the forward pass of the last accepted likelihood evaluation is kept and only the " +
+			"backward pass is run when logging. Requires this distribution to be part of the posterior", false);
+	public Input<Integer> mappingsInput = new Input<>("mappings",
+			"number of independent stochastic mappings drawn from the same forward pass for every logged sample", 1);
+	enum MappingMethod {trapezoid, uniformization};
+	public Input<MappingMethod> mappingMethodInput = new Input<>("mappingMethod",
+			"how migration events are sampled between the stored state probabilities, either by a trapezoid " +
+			"approximation of the migration hazard or exactly by uniformization, which allows for a larger " +
+			"maxIntegrationStepMapping", MappingMethod.trapezoid, MappingMethod.values());
+	public Input<Integer> threadsInput = new Input<>("threads",
+			"number of threads used to draw the stochastic mappings", 1);
+
+
+	// state probabilities of the lineages from the forward pass
+	ForwardTrajectory trajectory;
+	ForwardTrajectory storedTrajectory;
+	boolean trajectoryKnown = false;
+	boolean storedTrajectoryKnown = false;
+	// the trajectory accepted at store() is kept by writing the next forward pass
+	// into the other buffer, restore() only swaps back if that happened
+	boolean swapBeforeWrite = false;
+	boolean swappedSinceStore = false;
+	boolean reuseForwardPass;
 
 	protected DecimalFormat df;
 	protected boolean someMetaDataNeedsLogging;
 	protected boolean substitutions = false;
 
-	public List<Tree> mappedTrees;
+	StochasticMapping[] mappings;
+	ExecutorService executor;
 
-	List<Integer> activeStates;
 	double[] migrationRates;
 	
 	long lastLog=-1;
@@ -80,6 +106,26 @@ public class MappedMultitreeMascot extends MultitreeMascot implements Loggable {
 	public void initAndValidate() {
     	super.initAndValidate();
     	
+    	reuseForwardPass = reuseForwardPassInput.get();
+    	int lineageCount = 0;
+    	for (Tree t : treeIntervals.treeInput.get())
+    		lineageCount += t.getNodeCount();
+    	trajectory = new ForwardTrajectory(lineageCount, states);
+    	storedTrajectory = new ForwardTrajectory(lineageCount, states);
+
+    	if (mappingsInput.get() < 1)
+    		throw new IllegalArgumentException("the number of mappings has to be at least 1");
+    	mappings = new StochasticMapping[mappingsInput.get()];
+    	for (int i = 0; i < mappings.length; i++)
+    		mappings[i] = new StochasticMapping(treeIntervals, states);
+    	int threads = Math.min(threadsInput.get(), mappings.length);
+    	if (threads > 1) {
+    		executor = Executors.newFixedThreadPool(threads, r -> {
+    			Thread t = new Thread(r);
+    			t.setDaemon(true);
+    			return t;
+    		});
+    	}
 
 		if (parameterInput.get().size() == 0 && clockModelInput.get() == null) {
 			someMetaDataNeedsLogging = false;
@@ -107,25 +153,109 @@ public class MappedMultitreeMascot extends MultitreeMascot implements Loggable {
 
 	public void calcForLogging(long sample) {
 		if (lastLog!=sample) {
-			calculateLogP();
+			// only integrate again if there is no forward pass to reuse
+			if (!reuseForwardPass || !trajectoryKnown)
+				logP = calculateForward();
+			if (logP != Double.NEGATIVE_INFINITY)
+				sampleMapping();
 			lastLog=sample;
 		}
 	}
 
 	@Override
 	public double calculateLogP() {
-    	// newly calculate tree intervals (already done by swap() below)
-    	treeIntervals.calculateIntervals();
-    	
+		// the mappings are only drawn when logging
+		logP = calculateForward();
+		return logP;
+	}
+	
+	/**
+	 * samples the mappings of the migration events onto copies of the trees given 
+	 * the state probabilities stored during the last forward pass
+	 */
+	protected void sampleMapping() {
+		// read everything that is shared between the mappings on this thread
+		treeIntervals.getInterval(0);
+    	int n = dynamics.getEpochCount();
+    	double[][] epochMigrationRates = new double[n][];
+    	double[] epochIntervals = new double[n];
+    	for (int i = 0; i < n; i++) {
+    		epochMigrationRates[i] = dynamics.getBackwardsMigration(i);
+    		epochIntervals[i] = dynamics.getInterval(i);
+    	}
+
+    	UniformizedRates[] epochUniformized = null;
+    	if (mappingMethodInput.get() == MappingMethod.uniformization) {
+    		double maxStep = trajectory.getMaxStep();
+    		epochUniformized = new UniformizedRates[n];
+    		for (int i = 0; i < n; i++)
+    			epochUniformized[i] = new UniformizedRates(epochMigrationRates[i], states, maxStep);
+    	}
+
+    	// split the random streams up front, such that the mappings do not 
+    	// depend on the number of threads or the order in which they finish
+    	SplittableRandom seed = new SplittableRandom(Randomizer.nextLong());
+    	SplittableRandom[] streams = new SplittableRandom[mappings.length];
+    	for (int i = 0; i < mappings.length; i++)
+    		streams[i] = seed.split();
     	
-    	mappedTrees = new ArrayList<>();
-		for (Tree t : treeIntervals.treeInput.get()){
-			mappedTrees.add(new Tree(t.getRoot().copy()));
-			mappedTrees.get(mappedTrees.size()-1).getRoot().sort();
-		}
+    	if (executor == null) {
+    		for (int i = 0; i < mappings.length; i++)
+    			mappings[i].sample(trajectory, epochMigrationRates, epochIntervals, epochUniformized, streams[i]);
+    	} else {
+    		List<Callable<Void>> tasks = new ArrayList<>();
+    		final UniformizedRates[] uniformized = epochUniformized;
+    		for (int i = 0; i < mappings.length; i++) {
+    			final int m = i;
+    			tasks.add(() -> {
+    				mappings[m].sample(trajectory, epochMigrationRates, epochIntervals, uniformized, streams[m]);
+    				return null;
+    			});
+    		}
+    		try {
+    			for (Future<Void> f : executor.invokeAll(tasks))
+    				f.get();
+    		} catch (InterruptedException e) {
+    			Thread.currentThread().interrupt();
+    			throw new RuntimeException(e);
+    		} catch (ExecutionException e) {
+    			if (e.getCause() instanceof RuntimeException)
+    				throw (RuntimeException) e.getCause();
+    			throw new RuntimeException(e.getCause());
+    		}
+    	}
+	}
 
-		intermediateStateProbs = new HashMap<>();
-		intermediateTimes = new HashMap<>();
+	/**
+	 * returns the trees of the first mapping with the migration events added as single child nodes
+	 */
+	public List<Tree> getMappedTrees() {
+		return mappings[0].getMappedTrees();
+	}
+
+	/**
+	 * returns the name of mapping m of a logged sample, mappings of the same sample 
+	 * are told apart by a suffix if there is more than one
+	 */
+	String getTreeName(long sample, int m) {
+		if (mappings.length == 1)
+			return "STATE_" + sample;
+		return "STATE_" + sample + "_" + m;
+	}
+
+	/**
+	 * integrates the lineage state probabilities forward in time and keeps them 
+	 * in the trajectory
+	 */
+	protected double calculateForward() {
+    	// newly calculate tree intervals (already done by swap() below)
+    	treeIntervals.calculateIntervals();
+    	trajectoryKnown = false;
+    	if (swapBeforeWrite) {
+    		swapTrajectories();
+    		swapBeforeWrite = false;
+    		swappedSinceStore = true;
+    	}
 
 		double maxStepSize = treeIntervals.rootHeight * maxIntegrationStepMappingInput.get();
 
@@ -165,7 +295,7 @@ public class MappedMultitreeMascot extends MultitreeMascot implements Loggable {
 					maxTolerance *= 0.9;
 					recalculateLogP = false;
 					System.exit(0);
-					return calculateLogP();
+					return calculateForward();
 				}
 				
 				if (nextEventTime < maxStepSize) {
@@ -249,7 +379,10 @@ public class MappedMultitreeMascot extends MultitreeMascot implements Loggable {
         } while(nextTreeEvent <= Double.POSITIVE_INFINITY);
 
         first++;
-		resample(treeInterval, ratesInterval, lastRateShift);
+        trajectory.treeInterval = treeInterval;
+        trajectory.ratesInterval = ratesInterval;
+        trajectory.lastRateShift = lastRateShift;
+        trajectoryKnown = true;
 
 //		System.out.println("");
 		return logP;
@@ -305,345 +438,46 @@ public class MappedMultitreeMascot extends MultitreeMascot implements Loggable {
 
 
 	private void addNewLineage(int nr, double time) {
-		intermediateStateProbs.put(nr, new ArrayList<>());
-		intermediateTimes.put(nr, new ArrayList<>());
+		trajectory.addLineage(nr);
 
 		final int daughterIndex1 = activeLineages.indexOf(nr);// .getNr());
-
-		double[] probs = new double[states];
-
-		for (int i = 0; i < states; i++)
-			probs[i] = linProbs[daughterIndex1 * states + i];
-		
-		intermediateStateProbs.get(nr).add(probs);
-		intermediateTimes.get(nr).add(time);
+		trajectory.add(nr, time, linProbs, daughterIndex1 * states);
 	}
 	
-//	int iii=0;
-
-	private void resample(int treeInterval, int ratesInterval, double lastRateShift) {
-		treeInterval--;
-		// start by resampling the root
-		
-		activeStates = new ArrayList<>();
-		activeLineages.clear();
-
-		
-//    	int coalLines0 = treeIntervals.getLineagesRemoved(treeInterval, 0);	 	   		
-//    	activeLineages.add(coalLines0);		
-    	// sample the root state
-				
-		nrLineages = 1;
-		linProbsLength = 0;
-		
-		double currTime = treeIntervals.rootHeight;
-		
-//		System.out.println(currTime);
-
-//        int[] treenr = treeIntervals.getTree(coalLines0);
-        
-//		int originState = Randomizer.randomChoicePDF(intermediateStateProbs.get(coalLines0).get(0));
-//		System.out.println(mappedTrees.get(treenr[0]));
-//		Node root = mappedTrees.get(treenr[0]).getNode(treenr[1]);
-//		Node origin = new Node();
-//		origin.setHeight(currTime);
-//		origin.setMetaData("location", originState);
-//
-//		origin.addChild(root);
-//		root.setParent(origin);    	
-		introduceDown(treeInterval, currTime);
-    	
-//    	System.out.println(treeIntervals.getIntervalType(treeInterval));
-//    	System.out.println(treeIntervals.getIntervalType(treeInterval-1));
-//    	System.exit(0);
-
-
-		double nextTreeEvent = treeIntervals.getInterval(treeInterval);
-		double nextRateShift = currTime - lastRateShift;
-
-		double nextEventTime;
-		// Calculate the likelihood
-		do {
-			nextEventTime = Math.min(nextTreeEvent, nextRateShift);
-			if (nextEventTime > 0) { // if true, calculate the interval contribution
-//				System.out.println("currentTime " + currTime);
-				sampleMigrationEvents(currTime, currTime - nextEventTime);
-				currTime -= nextEventTime;
-			}
-
-			if (nextTreeEvent <= nextRateShift) {
-				if (treeIntervals.getIntervalType(treeInterval - 1) == IntervalType.COALESCENT) {
-//					System.out.println("c");
-					nrLineages++; // coalescent event reduces the number of lineages by one
-					coalesceDown(treeInterval - 1, currTime); // calculate the
-				}
-
-				if (treeIntervals.getIntervalType(treeInterval - 1) == IntervalType.SAMPLE) {
-//					System.out.println("s");
-
-					// if (linProbsLength > 0)
-					// logP += normalizeLineages(linProbs); // normalize all lineages before event
-					nrLineages--; // sampling event increases the number of lineages by one
-					sampleDown(treeInterval - 1); // calculate the likelihood of
-				}
-				
-				if (treeIntervals.getIntervalType(treeInterval - 1) == IntervalType.MIGRATION) {
-//					System.out.println("i");
-
-					// if (linProbsLength > 0)
-					// logP += normalizeLineages(linProbs); // normalize all lineages before event
-					nrLineages++; // sampling event increases the number of lineages by one
-					introduceDown(treeInterval - 1, currTime); // calculate the likelihood of
-				}
-
-
-				treeInterval--;
-				nextRateShift -= nextTreeEvent;
-				try {
-					nextTreeEvent = treeIntervals.getInterval(treeInterval);
-				} catch (Exception e) {
-					break;
-				}
-			} else {
-				nextTreeEvent -= nextRateShift;
-				ratesInterval--;
-				if (ratesInterval == 0) {
-					nextRateShift = Double.POSITIVE_INFINITY;
-				}else {
-					nextRateShift = dynamics.getInterval(ratesInterval);
-					coalescentRates = dynamics.getCoalescentRate(ratesInterval - 1);
-					migrationRates = dynamics.getBackwardsMigration(ratesInterval - 1);
-				}
-				// indicators = dynamics.getIndicators(ratesInterval);
-			}
-		} while (treeInterval > 0);
-
-		first++;
-
-	}
-
-
-	private void sampleMigrationEvents(double startTime, double endTime) {
-		for (int i = 0; i < activeLineages.size(); i++) {
-			sampleMigrationEventsLineage(activeLineages.get(i), i, startTime, endTime);
-		}
-	}
-
-	private void sampleMigrationEventsLineage(Integer nodeNr, int index, double startTime, double endTime) {
-		double K = -Math.log(Randomizer.nextDouble());
-		double I = 0.0;
-		double currentTime = startTime;
-				
-		int currTimeInterval = intermediateTimes.get(nodeNr).indexOf(startTime);
-		if (currTimeInterval == -1) {
-			boolean cont = false;
-			for (int i = 0; i < intermediateTimes.get(nodeNr).size(); i++)
-				if (Math.abs(intermediateTimes.get(nodeNr).get(i) - startTime) < 1e-10) {
-					currTimeInterval = i;
-					cont = true;
-					break;
-				}
-
-			if (!cont) {
-				for (int i = 0; i < intermediateTimes.get(nodeNr).size(); i++)
-					System.err.println(intermediateTimes.get(nodeNr).get(i) - startTime);
-				
-//				System.out.println(mappedTree);
-				
-
-				throw new IllegalArgumentException("timing not found");
-			}
-		}
-
-		double[] prob_start = intermediateStateProbs.get(nodeNr).get(currTimeInterval);
-		
-
-		while (currentTime > (endTime+1e-10)) {
-			double[] prob_end = intermediateStateProbs.get(nodeNr).get(currTimeInterval - 1);
-
-			int currState = activeStates.get(index);
-			
-			double[] integral_state = new double[states];
-			
-			double dt = currentTime - intermediateTimes.get(nodeNr).get(currTimeInterval - 1);
-						
-			double sumInt = 0;
-			for (int i = 0; i < states; i++) {
-				if (i != currState) {
-					double rates_start = migrationRates[i * states + currState] * 
-							prob_start[i] / prob_start[currState];
-					double rates_end = migrationRates[i * states + currState] * 
-							prob_end[i] / prob_end[currState];
-					
-					
-					if (prob_start[currState] <= 0 || prob_end[currState] <= 0) {
-						integral_state[i] = Double.POSITIVE_INFINITY;
-					}else if (prob_end[i] <= 0 || prob_start[i] <= 0){
-						integral_state[i] = 0;
-					}else{
-						integral_state[i] = 0.5 * (rates_end + rates_start) * dt;
-					}
-
-					sumInt += integral_state[i];
-				}
-			}
-
-			if ((I + sumInt) > K) {
-				// approximate the height of the new event
-				double intermediatePoint = Math.max(0.01, (K - I) / sumInt);
-				
-				currentTime = currentTime
-						- dt * (intermediatePoint);
-				
-				// update stateprobs for this point
-				for (int i = 0; i < states; i++)
-					prob_start[i] = (intermediatePoint) * prob_start[i] + (1-intermediatePoint) * prob_end[i];
-				
-				int newState = -1;
-				boolean hasInf = false;
-				for (int i = 0; i < integral_state.length; i ++) {
-					if (integral_state[i] == Double.POSITIVE_INFINITY && prob_end[i] > 0) {
-						newState = i;
-						hasInf = true;
-					}
-				}
-				
-				// sample migration event
-				if (!hasInf)
-					newState = Randomizer.randomChoicePDF(integral_state);
-				
-				if (newState == currState)
-					System.exit(0);
-				
-				int[] treenr = treeIntervals.getTree(nodeNr);
-
-			
-				// ad migration event
-				Node n = mappedTrees.get(treenr[0]).getNode(treenr[1]);								
-				Node p = n.getParent();
-				
-				Node migNode = new Node();
-				migNode.setMetaData("location", currState);
-				migNode.setHeight(currentTime);
-				migNode.setHeight(currentTime - treeIntervals.offset[treenr[0]]);
-				migNode.setNr(Integer.MAX_VALUE);
-								
-				migNode.setParent(p);
-				migNode.addChild(n);
-
-
-				p.removeChild(n);
-				p.addChild(migNode);
-				
-
-				n.setParent(migNode);
-				
-				activeStates.set(index, newState);
-
-				// reset "timers"
-				K = -Math.log(Randomizer.nextDouble());
-				I = 0.0;
-			} else {
-				I += sumInt;
-				currTimeInterval--;
-				if (currTimeInterval == 0)
-					break;
-
-				prob_start = intermediateStateProbs.get(nodeNr).get(currTimeInterval);
-				currentTime = intermediateTimes.get(nodeNr).get(currTimeInterval);
-			}
-		}
-	}
-
-	private void coalesceDown(int currTreeInterval , double time) {
-		int coalLines0 = treeIntervals.getLineagesRemoved(currTreeInterval, 0);
-		int coalLines1 = treeIntervals.getLineagesRemoved(currTreeInterval, 1);
-
-//		int lineageToAdd = tree.getNode(coalLines0).getParent().getNr();
-		
-        int lineageToAdd = treeIntervals.getLineagesAdded(currTreeInterval);
-//        activeLineages.add(lineageToAdd);        
-
-        int[] treenr = treeIntervals.getTree(lineageToAdd);
-        
-
-		int currState = activeStates.get(activeLineages.indexOf(lineageToAdd));
-		mappedTrees.get(treenr[0]).getNode(treenr[1]).setMetaData("location", currState);
-		activeStates.remove(activeLineages.indexOf(lineageToAdd));
-		activeLineages.remove(activeLineages.indexOf(lineageToAdd));
-
-
-		activeLineages.add(coalLines0);
-		activeLineages.add(coalLines1);
-		activeStates.add(currState);
-		activeStates.add(currState);
-
-	}
-
-
-	private void sampleDown(int currTreeInterval) {
-		
-//		iii++;
-		
-		int incomingLines = treeIntervals.getLineagesAdded(currTreeInterval);
-		
-        int[] treenr = treeIntervals.getTree(incomingLines);
-
-		
-		mappedTrees.get(treenr[0]).getNode(treenr[1]).setMetaData("location", activeStates.get(activeLineages.indexOf(incomingLines)));
-		mappedTrees.get(treenr[0]).getNode(treenr[1]).getMetaData("location");
-
-		activeStates.remove(activeLineages.indexOf(incomingLines));
-		activeLineages.remove(activeLineages.indexOf(incomingLines));
-	}
-	
-
-	private void introduceDown(int currTreeInterval, double time) {
-    	int coalLines0 = treeIntervals.getLineagesRemoved(currTreeInterval, 0);	 	   		
-    	activeLineages.add(coalLines0);		
-    	// sample the root state
-    	
-        int[] treenr = treeIntervals.getTree(coalLines0);
-        
-                
-		int originState = Randomizer.randomChoicePDF(intermediateStateProbs.get(coalLines0).get(0));
-		Node root = mappedTrees.get(treenr[0]).getNode(treenr[1]);
-		Node origin = new Node();
-		origin.setHeight(time - treeIntervals.offset[treenr[0]]);
-//		origin.setMetaData("location", originState);
-		origin.setNr(root.getNr());
-
-		origin.addChild(root);
-		root.setParent(origin);  
-		
-		mappedTrees.get(treenr[0]).setRoot(origin);
-		// sample rootState
-    	activeStates.add(originState);
-
-	}
-
-
 	private void storeIntermediateResults(double time) {
-		for (Integer nodeNr : activeLineages) {
-			final int daughterIndex1 = activeLineages.indexOf(nodeNr);// .getNr());
-			double[] probs = new double[states];
-			for (int i = 0; i < states; i++)
-				probs[i] = linProbs[daughterIndex1 * states + i];
-
-			intermediateStateProbs.get(nodeNr).add(probs);
-			intermediateTimes.get(nodeNr).add(time);
-		}
+		for (int i = 0; i < activeLineages.size(); i++)
+			trajectory.add(activeLineages.get(i), time, linProbs, i * states);
 	}
 
 	@Override
 	public void store() {
-//		super.store();
+		if (!reuseForwardPass)
+			return;
+		
+		storedTrajectoryKnown = trajectoryKnown;
+		swapBeforeWrite = true;
+		swappedSinceStore = false;
+		super.store();
 	}
 
 
 	@Override
 	public void restore() {
-//		super.restore();
+		if (!reuseForwardPass)
+			return;
+		
+		if (swappedSinceStore)
+			swapTrajectories();
+		trajectoryKnown = storedTrajectoryKnown;
+		swapBeforeWrite = false;
+		swappedSinceStore = false;
+		super.restore();
+	}
+
+	private void swapTrajectories() {
+		ForwardTrajectory tmp = trajectory;
+		trajectory = storedTrajectory;
+		storedTrajectory = tmp;
 	}
 
 	@Override
@@ -654,14 +488,13 @@ public class MappedMultitreeMascot extends MultitreeMascot implements Loggable {
 
     @Override
     public void log(final long sample, final PrintStream out) {
-        calculateLogP();
+    	calcForLogging(sample);
         double maxHeight=-1.0;
         for (int i = 0; i < treeIntervals.treeInput.get().size();i++) {
         	maxHeight = Math.max(treeIntervals.treeInput.get().get(i).getRoot().getHeight()+
         			treeIntervals.offset[i] + treeIntervals.rootLengthInput.get().get(i).getValue(), 
         			maxHeight);
         }
-        String tree_string = "rem";
 		BranchRateModel.Base branchRateModel = clockModelInput.get();
 		List<Function> metadata = parameterInput.get();
 		for (int i = 0; i < metadata.size(); i++) {
@@ -670,20 +503,24 @@ public class MappedMultitreeMascot extends MultitreeMascot implements Loggable {
 			}
 		}
 
-        for (int i = 0; i < treeIntervals.treeInput.get().size();i++) {
-        	if (treeIntervals.treeInput.get().get(i).getExternalNodes().size()>=minClusterSizeInput.get())
-	        	tree_string = tree_string + ",(" + 
-    			toNewick(mappedTrees.get(i).getRoot(), metadata, branchRateModel) + 
-		        ")[&obs=0]:" +  (maxHeight-treeIntervals.treeInput.get().get(i).getRoot().getHeight()-treeIntervals.offset[i]-treeIntervals.rootLengthInput.get().get(i).getValue());
-        }
-        tree_string = tree_string.replace("rem,", "(");
-        tree_string = tree_string + "):0.0";
-        tree_string = tree_string.replace("[&]", "");
-        
-        
-        out.print("tree STATE_" + sample + " = ");
-        out.print(tree_string);
-        out.print(";");	        		
+		for (int m = 0; m < mappings.length; m++) {
+			if (m > 0)
+				out.println();
+	        String tree_string = "rem";
+	        for (int i = 0; i < treeIntervals.treeInput.get().size();i++) {
+	        	if (treeIntervals.treeInput.get().get(i).getExternalNodes().size()>=minClusterSizeInput.get())
+		        	tree_string = tree_string + ",(" + 
+	    			toNewick(mappings[m].getMappedTrees().get(i).getRoot(), metadata, branchRateModel) + 
+			        ")[&obs=0]:" +  (maxHeight-treeIntervals.treeInput.get().get(i).getRoot().getHeight()-treeIntervals.offset[i]-treeIntervals.rootLengthInput.get().get(i).getValue());
+	        }
+	        tree_string = tree_string.replace("rem,", "(");
+	        tree_string = tree_string + "):0.0";
+	        tree_string = tree_string.replace("[&]", "");
+	        
+	        out.print("tree " + getTreeName(sample, m) + " = ");
+	        out.print(tree_string);
+	        out.print(";");
+		}
     }
 
 //	@Override
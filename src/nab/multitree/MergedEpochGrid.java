@@ -0,0 +1,217 @@
+package nab.multitree;
+
+import java.util.Arrays;
+
+import nab.skygrid.EpochCursor;
+import nab.skygrid.RateMultiplier;
+import nab.skygrid.TimeVaryingRates;
+
+/**
+ * Union of the rate shifts of the immigration rate, the optional rate multiplier and the
+ * optional sampling rate of a MultiTreeCoalescent. Within a merged epoch all of them are
+ * linear in time (constant unless the rates are interpolated), such that the log migration
+ * rate (immigration plus multiplier) and the log sampling rate are tabulated per epoch by
+ * their value at the start, their slope and their integral from time 0 to the start. The
+ * likelihood then looks up one epoch per time instead of querying every function.
+ * After the last merged shift, at least one of the rates is not defined and both are infinite.
+ *
+ * @author Nicola F. Mueller
+ */
+public class MergedEpochGrid {
+
+	final TimeVaryingRates immigrationRate;
+	final RateMultiplier rateMultiplier;
+	final TimeVaryingRates samplingRate;
+
+	double[] times = new double[0];
+	double[] storedTimes = new double[0];
+	int epochCount = 0;
+	int storedEpochCount = 0;
+	double[] scratch = new double[0];
+
+	final Column migration = new Column();
+	final Column sampling = new Column();
+
+	// value at the start, slope and integral up to the start of every epoch of one log rate
+	static class Column {
+		double[] value = new double[0], slope = new double[0], cumulative = new double[1];
+		double[] storedValue = new double[0], storedSlope = new double[0], storedCumulative = new double[1];
+
+		void ensureCapacity(int n) {
+			// the stored values are kept, they may still be restored
+			if (value.length < n) {
+				value = new double[n];
+				slope = new double[n];
+				cumulative = new double[n+1];
+				storedValue = Arrays.copyOf(storedValue, n);
+				storedSlope = Arrays.copyOf(storedSlope, n);
+				storedCumulative = Arrays.copyOf(storedCumulative, n+1);
+			}
+		}
+
+		void set(int e, double start, double length, double atStart, double atMid) {
+			if (Double.isInfinite(atStart) || Double.isInfinite(atMid)) {
+				value[e] = Double.POSITIVE_INFINITY;
+				slope[e] = 0.0;
+				cumulative[e+1] = Double.POSITIVE_INFINITY;
+				return;
+			}
+			value[e] = atStart;
+			slope[e] = (atMid - atStart) / (length / 2);
+			cumulative[e+1] = cumulative[e] + length * (atStart + slope[e] * length / 2);
+		}
+
+		void store(int n) {
+			System.arraycopy(value, 0, storedValue, 0, n);
+			System.arraycopy(slope, 0, storedSlope, 0, n);
+			System.arraycopy(cumulative, 0, storedCumulative, 0, n+1);
+		}
+
+		void restore() {
+			double[] tmp = value; value = storedValue; storedValue = tmp;
+			tmp = slope; slope = storedSlope; storedSlope = tmp;
+			tmp = cumulative; cumulative = storedCumulative; storedCumulative = tmp;
+		}
+	}
+
+	public MergedEpochGrid(TimeVaryingRates immigrationRate, RateMultiplier rateMultiplier, TimeVaryingRates samplingRate) {
+		this.immigrationRate = immigrationRate;
+		this.rateMultiplier = rateMultiplier;
+		this.samplingRate = samplingRate;
+		update();
+	}
+
+	/**
+	 * merges the rate shifts and recomputes the tables, to be called whenever one of the rates changed
+	 */
+	public void update() {
+		mergeShiftTimes();
+		migration.ensureCapacity(epochCount);
+		if (samplingRate != null)
+			sampling.ensureCapacity(epochCount);
+
+		for (int e = 0; e < epochCount; e++) {
+			double start = getEpochStart(e);
+			double length = times[e] - start;
+			double mid = start + length / 2;
+			migration.set(e, start, length, getLogMigration(start), getLogMigration(mid));
+			if (samplingRate != null)
+				sampling.set(e, start, length, samplingRate.getRate(start), samplingRate.getRate(mid));
+		}
+	}
+
+	private double getLogMigration(double t) {
+		if (rateMultiplier != null)
+			return immigrationRate.getRate(t) + rateMultiplier.getRate(t);
+		return immigrationRate.getRate(t);
+	}
+
+	// union of the sorted rate shifts, without duplicates and without shifts before time 0
+	private void mergeShiftTimes() {
+		double[] a = immigrationRate.getShiftTimes();
+		double[] b = rateMultiplier != null ? rateMultiplier.getShiftTimes() : new double[0];
+		double[] c = samplingRate != null ? samplingRate.getShiftTimes() : new double[0];
+		int total = a.length + b.length + c.length;
+		if (scratch.length < total)
+			scratch = new double[total];
+		int n = 0, i = 0, j = 0, k = 0;
+		while (i < a.length || j < b.length || k < c.length) {
+			double next = Double.POSITIVE_INFINITY;
+			if (i < a.length)
+				next = Math.min(next, a[i]);
+			if (j < b.length)
+				next = Math.min(next, b[j]);
+			if (k < c.length)
+				next = Math.min(next, c[k]);
+			while (i < a.length && a[i] == next) i++;
+			while (j < b.length && b[j] == next) j++;
+			while (k < c.length && c[k] == next) k++;
+			if (next > 0)
+				scratch[n++] = next;
+		}
+		if (times.length != n)
+			times = new double[n];
+		System.arraycopy(scratch, 0, times, 0, n);
+		epochCount = n;
+	}
+
+	private double getEpochStart(int e) {
+		return e == 0 ? 0.0 : times[e-1];
+	}
+
+	/**
+	 * @return the index of the first merged shift larger than t, or the number of merged epochs if there is none
+	 */
+	public int seek(double t, EpochCursor cursor) {
+		return cursor.seek(times, t);
+	}
+
+	/**
+	 * log of the migration rate, i.e. the immigration rate plus the rate multiplier, at time t
+	 */
+	public double getLogMigrationRate(double t, EpochCursor cursor) {
+		return getValue(migration, t, cursor);
+	}
+
+	/**
+	 * mean of the log migration rate between start and finish
+	 */
+	public double getMeanLogMigrationRate(double start, double finish, EpochCursor cursor) {
+		return getMean(migration, start, finish, cursor);
+	}
+
+	public double getLogSamplingRate(double t, EpochCursor cursor) {
+		return getValue(sampling, t, cursor);
+	}
+
+	public double getMeanLogSamplingRate(double start, double finish, EpochCursor cursor) {
+		return getMean(sampling, start, finish, cursor);
+	}
+
+	private double getValue(Column column, double t, EpochCursor cursor) {
+		int e = seek(t, cursor);
+		if (e >= epochCount)
+			return Double.POSITIVE_INFINITY;
+		return column.value[e] + column.slope[e] * (t - getEpochStart(e));
+	}
+
+	private double getMean(Column column, double start, double finish, EpochCursor cursor) {
+		if (start == finish)
+			return 0.0;
+		int first = seek(start, cursor);
+		int last = seek(finish, cursor);
+		if (last >= epochCount || Double.isInfinite(column.value[last]))
+			return Double.POSITIVE_INFINITY;
+		if (first == last)
+			return column.value[first] + column.slope[first] * ((start + finish) / 2 - getEpochStart(first));
+		return (getIntegral(column, finish, last) - getIntegral(column, start, first)) / (finish - start);
+	}
+
+	private double getIntegral(Column column, double t, int e) {
+		double timediff = t - getEpochStart(e);
+		return column.cumulative[e] + timediff * (column.value[e] + column.slope[e] * timediff / 2);
+	}
+
+	public int getEpochCount() {
+		return epochCount;
+	}
+
+	public void store() {
+		if (storedTimes.length != times.length)
+			storedTimes = new double[times.length];
+		System.arraycopy(times, 0, storedTimes, 0, epochCount);
+		storedEpochCount = epochCount;
+		migration.store(epochCount);
+		if (samplingRate != null)
+			sampling.store(epochCount);
+	}
+
+	public void restore() {
+		double[] tmp = times; times = storedTimes; storedTimes = tmp;
+		int tmp2 = epochCount; epochCount = storedEpochCount; storedEpochCount = tmp2;
+		migration.restore();
+		if (samplingRate != null)
+			sampling.restore();
+	}
+
+}
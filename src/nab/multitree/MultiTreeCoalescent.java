@@ -1,20 +1,31 @@
 package nab.multitree;
 
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import beast.core.CalculationNode;
 import beast.core.Description;
 import beast.core.Input;
 import beast.core.Input.Validate;
 import beast.core.State;
+import beast.evolution.tree.Node;
+import beast.evolution.tree.Tree;
 import beast.evolution.tree.coalescent.IntervalList;
 import beast.evolution.tree.coalescent.IntervalType;
 import beast.evolution.tree.coalescent.PopulationFunction;
 import beast.math.Binomial;
+import nab.skygrid.DirtyTimeWindow;
+import nab.skygrid.EpochCursor;
 import nab.skygrid.RateMultiplier;
+import nab.skygrid.SweepablePopulationFunction;
 import nab.skygrid.TimeVaryingRates;
 
 
@@ -43,6 +54,13 @@ public class MultiTreeCoalescent extends MultiTreeDistribution {
 
     final public Input<Boolean> rateIsBackwardsInput = new Input<>("rateIsBackwards", "define whether the rate is backwards in time", true);
 
+    final public Input<Boolean> useCacheInput = new Input<>("useCache", 
+    		"if true, the contribution of every interval is cached and only the intervals that changed, or that overlap "
+    		+ "the time window over which the rates changed, are recalculated", true);
+
+    final public Input<Integer> threadsInput = new Input<>("threads", 
+    		"number of threads used to calculate the contributions of the intervals, only worth it for very large datasets", 1);
+
     
     MultiTreeIntervals intervals;
     TimeVaryingRates immigrationRate;
@@ -51,7 +69,39 @@ public class MultiTreeCoalescent extends MultiTreeDistribution {
     boolean hasRateMultiplier = false;
     boolean hasSamplingRate = false;
     
-    boolean allDirty = false;
+    boolean allDirty = true;
+    
+    // below this number of intervals to recalculate, the calculation is not split over threads
+    static final int MIN_PARALLEL_INTERVALS = 2000;
+    ExecutorService executor;
+    int threads;
+    boolean[] recalculate;
+    
+    // cached contribution of every interval together with the interval it was calculated for,
+    // prefix[i] is the sum of the contributions of the intervals before i
+    double[] startTimes, durations, contributions, prefix;
+    int[] lineageCounts;
+    IntervalType[] intervalTypes;
+    int cachedCount = 0;
+    double[] storedStartTimes, storedDurations, storedContributions, storedPrefix;
+    int[] storedLineageCounts;
+    IntervalType[] storedIntervalTypes;
+    int storedCachedCount = 0;
+
+    // one cursor per function of time, such that sweeping over the sorted intervals walks every grid only once
+    static class Sweep {
+    	final EpochCursor popSize = new EpochCursor();
+    	final EpochCursor epochs = new EpochCursor();
+    }
+    Sweep sweep = new Sweep();
+
+    // the immigration, multiplier and sampling rates tabulated on the union of their rate shifts
+    MergedEpochGrid epochs;
+    boolean epochsDirty = false;
+
+    // time window over which the rates changed in the current proposal
+    double dirtyStart = Double.POSITIVE_INFINITY;
+    double dirtyEnd = Double.NEGATIVE_INFINITY;
     
     
     @Override
@@ -70,6 +120,17 @@ public class MultiTreeCoalescent extends MultiTreeDistribution {
         	samplingRate = samplingRateInput.get();
         	hasSamplingRate = true;
         }
+        
+        epochs = new MergedEpochGrid(immigrationRate, rateMulitplier, samplingRate);
+        
+        threads = threadsInput.get();
+        if (threads > 1) {
+        	executor = Executors.newFixedThreadPool(threads, r -> {
+        		Thread t = new Thread(r);
+        		t.setDaemon(true);
+        		return t;
+        	});
+        }
         	
         
         calculateLogP();
@@ -80,8 +141,18 @@ public class MultiTreeCoalescent extends MultiTreeDistribution {
      */
     @Override
     public double calculateLogP() {
+        if (epochsDirty) {
+        	epochs.update();
+        	epochsDirty = false;
+        }
 
-        logP = calculateLogLikelihood(intervals, popSizeInput.get());
+        if (useCacheInput.get() || executor != null) {
+        	if (!useCacheInput.get())
+        		allDirty = true;
+        	logP = calculateCachedLogLikelihood(popSizeInput.get(), 0.0);
+        } else {
+        	logP = calculateLogLikelihood(intervals, popSizeInput.get());
+        }
 
         if (Double.isInfinite(logP)) {
         	logP = Double.NEGATIVE_INFINITY;
@@ -92,8 +163,34 @@ public class MultiTreeCoalescent extends MultiTreeDistribution {
 
     @Override
     public void sample(State state, Random random) {
-        // TODO this should eventually sample a coalescent tree conditional on population size function
-        throw new UnsupportedOperationException("This should eventually sample a coalescent tree conditional on population size function.");
+        // every tree is simulated conditional on its tips, such that the taxa and their dates stay the same
+        MultiTreeCoalescentSimulator simulator = new MultiTreeCoalescentSimulator(this);
+        List<Tree> trees = intervals.treeInput.get();
+        for (int i = 0; i < trees.size(); i++) {
+        	Tree tree = trees.get(i);
+        	List<Node> tips = new ArrayList<>();
+        	for (Node leaf : tree.getExternalNodes()) {
+        		Node tip = new Node();
+        		tip.setNr(leaf.getNr());
+        		tip.setID(leaf.getID());
+        		tip.setHeight(leaf.getHeight() + intervals.offset[i]);
+        		tips.add(tip);
+        	}
+        	MultiTreeCoalescentSimulator.Cluster cluster = simulator.simulateCluster(tips, random);
+        	shiftHeights(cluster.root, intervals.offset[i]);
+        	if (tips.size() > 1)
+        		tree.assignFromWithoutID(new Tree(cluster.root));
+        	if (i < intervals.rootLengthInput.get().size())
+        		intervals.rootLengthInput.get().get(i).setValue(cluster.origin - intervals.offset[i] - cluster.root.getHeight());
+        }
+        intervals.setIntervalsUnknown();
+        allDirty = true;
+    }
+
+    private void shiftHeights(Node node, double offset) {
+    	node.setHeight(node.getHeight() - offset);
+    	for (Node child : node.getChildren())
+    		shiftHeights(child, offset);
     }
 
     /**
@@ -139,89 +236,259 @@ public class MultiTreeCoalescent extends MultiTreeDistribution {
 
         double logL = 0.0;
 
+        Sweep sweep = new Sweep();
         double startTime = 0.0;
         final int n = intervals.getIntervalCount();
         for (int i = 0; i < n; i++) {
+            final double duration = intervals.getInterval(i);
+            logL += calculateIntervalLogLikelihood(startTime, duration, intervals.getLineageCount(i), 
+            		intervals.getIntervalType(i), popSizeFunction, threshold, sweep);
+            if (logL == Double.NEGATIVE_INFINITY)
+            	return logL;
+            startTime += duration;
+        }
+        
+        return logL;
+    }
 
+    /**
+     * Calculates the log likelihood of the intervals, reusing the contributions of all intervals 
+     * that did not change since the last calculation and that do not overlap the time window 
+     * over which the rates changed. The intervals are read on the calling thread, the contributions 
+     * can be calculated in chunks on several threads. Since every contribution is calculated on its
+     * own and the prefix is summed in order, the result does not depend on the number of threads.
+     */
+    protected double calculateCachedLogLikelihood(PopulationFunction popSizeFunction, double threshold) {
+        final int n = intervals.getIntervalCount();
+        if (startTimes == null || startTimes.length < n)
+        	initCache(n);
+        
+        int first = Math.min(n, cachedCount);
+        int count = 0;
+        double startTime = 0.0;
+        for (int i = 0; i < n; i++) {
             final double duration = intervals.getInterval(i);
             final double finishTime = startTime + duration;
+            final int lineageCount = intervals.getLineageCount(i);
+            final IntervalType type = intervals.getIntervalType(i);
+            
+            if (allDirty || i >= cachedCount || startTimes[i] != startTime || durations[i] != duration 
+            		|| lineageCounts[i] != lineageCount || intervalTypes[i] != type
+            		|| (finishTime >= dirtyStart && startTime <= dirtyEnd)) {
+            	startTimes[i] = startTime;
+            	durations[i] = duration;
+            	lineageCounts[i] = lineageCount;
+            	intervalTypes[i] = type;
+            	recalculate[i] = true;
+            	first = Math.min(first, i);
+            	count++;
+            } else {
+            	recalculate[i] = false;
+            }
+            startTime = finishTime;
+        }
+        cachedCount = n;
+        
+        if (executor != null && count >= MIN_PARALLEL_INTERVALS)
+        	calculateContributionsParallel(first, n, popSizeFunction, threshold);
+        else
+        	calculateContributions(first, n, popSizeFunction, threshold, sweep);
+        
+        for (int i = first; i < n; i++)
+        	prefix[i+1] = prefix[i] + contributions[i];
+        
+        allDirty = false;
+        dirtyStart = Double.POSITIVE_INFINITY;
+        dirtyEnd = Double.NEGATIVE_INFINITY;
+        return prefix[n];
+    }
+    
+    private void calculateContributions(int from, int to, PopulationFunction popSizeFunction, double threshold, Sweep sweep) {
+    	for (int i = from; i < to; i++)
+    		if (recalculate[i])
+    			contributions[i] = calculateIntervalLogLikelihood(startTimes[i], durations[i], lineageCounts[i], 
+    					intervalTypes[i], popSizeFunction, threshold, sweep);
+    }
+    
+    // splits the intervals into one chunk per thread, each with its own cursors that start by binary search
+    private void calculateContributionsParallel(int from, int to, PopulationFunction popSizeFunction, double threshold) {
+    	int chunkSize = (to - from + threads - 1) / threads;
+    	List<Callable<Void>> tasks = new ArrayList<>();
+    	for (int start = from; start < to; start += chunkSize) {
+    		final int chunkStart = start;
+    		final int chunkEnd = Math.min(to, start + chunkSize);
+    		tasks.add(() -> {
+    			calculateContributions(chunkStart, chunkEnd, popSizeFunction, threshold, new Sweep());
+    			return null;
+    		});
+    	}
+    	try {
+    		for (Future<Void> f : executor.invokeAll(tasks))
+    			f.get();
+    	} catch (InterruptedException e) {
+    		Thread.currentThread().interrupt();
+    		throw new RuntimeException(e);
+    	} catch (ExecutionException e) {
+    		if (e.getCause() instanceof RuntimeException)
+    			throw (RuntimeException) e.getCause();
+    		throw new RuntimeException(e.getCause());
+    	}
+    }
+    
+    private void initCache(int n) {
+    	startTimes = new double[n];
+    	durations = new double[n];
+    	contributions = new double[n];
+    	prefix = new double[n+1];
+    	lineageCounts = new int[n];
+    	intervalTypes = new IntervalType[n];
+    	storedStartTimes = new double[n];
+    	storedDurations = new double[n];
+    	storedContributions = new double[n];
+    	storedPrefix = new double[n+1];
+    	storedLineageCounts = new int[n];
+    	storedIntervalTypes = new IntervalType[n];
+    	recalculate = new boolean[n];
+    	cachedCount = 0;
+    	storedCachedCount = 0;
+    }
+
+    /**
+     * Calculates the log likelihood contribution of a single interval, looking up the epochs of all 
+     * functions of time with the cursors of the sweep.
+     */
+    protected double calculateIntervalLogLikelihood(double startTime, double duration, int lineageCount, 
+    		IntervalType intervalType, PopulationFunction popSizeFunction, double threshold, Sweep sweep) {
+        double logL = 0.0;
+        final double finishTime = startTime + duration;
 
-            final double intervalArea = popSizeFunction.getIntegral(startTime, finishTime);///Math.exp(rateMulitplier.getMeanRate(startTime, finishTime));
-            if (intervalArea == 0 && duration > 1e-10) {
-            	/* the above test used to be duration != 0, but that leads to numerical issues on resume
-            	 * (https://github.com/CompEvol/beast2/issues/329) */
+        final double intervalArea = getIntegral(popSizeFunction, startTime, finishTime, sweep.popSize);///Math.exp(rateMulitplier.getMeanRate(startTime, finishTime));
+        if (intervalArea == 0 && duration > 1e-10) {
+        	/* the above test used to be duration != 0, but that leads to numerical issues on resume
+        	 * (https://github.com/CompEvol/beast2/issues/329) */
+            return Double.NEGATIVE_INFINITY;
+        }
+        final double kChoose2 = Binomial.choose2(lineageCount);
+        
+        // compute the mean migration rate
+        
+        double meanMig = Math.exp(epochs.getMeanLogMigrationRate(startTime, finishTime, sweep.epochs));
+        
+        // coalescent part
+        logL -= kChoose2 * intervalArea;
+        if (rateIsBackwardsInput.get())
+        	logL -= meanMig * lineageCount * duration;
+        else
+        	logL -= meanMig * lineageCount * intervalArea;
+        
+        
+        if (intervalType == IntervalType.COALESCENT) {
+
+            final double demographicAtCoalPoint = getPopSize(popSizeFunction, finishTime, sweep.popSize);//*Math.exp(rateMulitplier.getRate(finishTime));
+
+            // if value at end is many orders of magnitude different than mean over interval reject the interval
+            // This is protection against cases where ridiculous infinitesimal
+            // population size at the end of a linear interval drive coalescent values to infinity.
+
+            if (duration == 0.0 || demographicAtCoalPoint * (intervalArea / duration) >= threshold) {
+                //                if( duration == 0.0 || demographicAtCoalPoint >= threshold * (duration/intervalArea) ) {
+                logL -= Math.log(demographicAtCoalPoint);
+            } else {
+                // remove this at some stage
+                //  System.err.println("Warning: " + i + " " + demographicAtCoalPoint + " " + (intervalArea/duration) );
                 return Double.NEGATIVE_INFINITY;
             }
-            final int lineageCount = intervals.getLineageCount(i);
-
-            final double kChoose2 = Binomial.choose2(lineageCount);
-            
-            // compute the mean migration rate
-            
-            double meanMig;
-            if (hasRateMultiplier)
-            	meanMig = Math.exp(rateMulitplier.getMeanRate(startTime, finishTime) + immigrationRate.getMeanRate(startTime, finishTime));
-        	else
-        		meanMig = Math.exp(immigrationRate.getMeanRate(startTime, finishTime));
-            
-            // coalescent part
-            logL -= kChoose2 * intervalArea;
+        }
+        if (intervalType == IntervalType.MIGRATION) {
+        	double mig = Math.exp(epochs.getLogMigrationRate(finishTime, sweep.epochs));
             if (rateIsBackwardsInput.get())
-            	logL -= meanMig * lineageCount * duration;
+            	logL += Math.log(mig);
             else
-            	logL -= meanMig * lineageCount * intervalArea;
-            
-            
-            if (intervals.getIntervalType(i) == IntervalType.COALESCENT) {
-
-                final double demographicAtCoalPoint = popSizeFunction.getPopSize(finishTime);//*Math.exp(rateMulitplier.getRate(finishTime));
-
-                // if value at end is many orders of magnitude different than mean over interval reject the interval
-                // This is protection against cases where ridiculous infinitesimal
-                // population size at the end of a linear interval drive coalescent values to infinity.
-
-                if (duration == 0.0 || demographicAtCoalPoint * (intervalArea / duration) >= threshold) {
-                    //                if( duration == 0.0 || demographicAtCoalPoint >= threshold * (duration/intervalArea) ) {
-                    logL -= Math.log(demographicAtCoalPoint);
-                } else {
-                    // remove this at some stage
-                    //  System.err.println("Warning: " + i + " " + demographicAtCoalPoint + " " + (intervalArea/duration) );
-                    return Double.NEGATIVE_INFINITY;
-                }
-            }
-            if (intervals.getIntervalType(i) == IntervalType.MIGRATION) {
-            	double mig;
-                if (hasRateMultiplier)
-                	mig = Math.exp(rateMulitplier.getRate(finishTime)+immigrationRate.getRate(finishTime));
-                else
-                	mig = Math.exp(immigrationRate.getRate(finishTime));
-                if (rateIsBackwardsInput.get())
-                	logL += Math.log(mig);
-                else
-                	logL += Math.log(mig/popSizeFunction.getPopSize(finishTime));                
-            }
-            if (hasSamplingRate) {
-            	if (intervals.getIntervalType(i) == IntervalType.SAMPLE) {
-            		double sampling = Math.exp(samplingRate.getRate(finishTime)) * popSizeFunction.getPopSize(finishTime);
-                    logL += Math.log(sampling);            		
-            	}
-            	if (intervalArea>0.0) {
-            		double meanSampling = Math.exp(samplingRate.getMeanRate(startTime, finishTime)) * duration / intervalArea;
-            		logL -= meanSampling * duration;
-            	}
-            }
-            
-            startTime = finishTime;
+            	logL += Math.log(mig/getPopSize(popSizeFunction, finishTime, sweep.popSize));                
+        }
+        if (hasSamplingRate) {
+        	if (intervalType == IntervalType.SAMPLE) {
+        		double sampling = Math.exp(epochs.getLogSamplingRate(finishTime, sweep.epochs)) * getPopSize(popSizeFunction, finishTime, sweep.popSize);
+                logL += Math.log(sampling);            		
+        	}
+        	if (intervalArea>0.0) {
+        		double meanSampling = Math.exp(epochs.getMeanLogSamplingRate(startTime, finishTime, sweep.epochs)) * duration / intervalArea;
+        		logL -= meanSampling * duration;
+        	}
         }
         
         return logL;
     }
 
+    private double getIntegral(PopulationFunction popSizeFunction, double start, double finish, EpochCursor cursor) {
+    	if (popSizeFunction instanceof SweepablePopulationFunction)
+    		return ((SweepablePopulationFunction) popSizeFunction).getIntegral(start, finish, cursor);
+    	return popSizeFunction.getIntegral(start, finish);
+    }
+
+    private double getPopSize(PopulationFunction popSizeFunction, double t, EpochCursor cursor) {
+    	if (popSizeFunction instanceof SweepablePopulationFunction)
+    		return ((SweepablePopulationFunction) popSizeFunction).getPopSize(t, cursor);
+    	return popSizeFunction.getPopSize(t);
+    }
+
     @Override
     protected boolean requiresRecalculation() {
-    	if (((CalculationNode) popSizeInput.get()).isDirtyCalculation() || immigrationRateInput.isDirty())
-    		allDirty=true;
+    	if (immigrationRate.isDirtyCalculation() || (hasRateMultiplier && rateMulitplier.isDirtyCalculation())
+    			|| (hasSamplingRate && samplingRate.isDirtyCalculation()))
+    		epochsDirty = true;
+    	addDirtyWindow(popSizeInput.get());
+    	addDirtyWindow(immigrationRate);
+    	if (hasRateMultiplier)
+    		addDirtyWindow(rateMulitplier);
+    	if (hasSamplingRate)
+    		addDirtyWindow(samplingRate);
     	
         return ((CalculationNode) popSizeInput.get()).isDirtyCalculation() || super.requiresRecalculation();
     }
+    
+    // extends the dirty time window by the window over which a function changed
+    private void addDirtyWindow(Object function) {
+    	if (!(function instanceof CalculationNode) || !((CalculationNode) function).isDirtyCalculation())
+    		return;
+    	if (function instanceof DirtyTimeWindow) {
+    		dirtyStart = Math.min(dirtyStart, ((DirtyTimeWindow) function).getDirtyStart());
+    		dirtyEnd = Math.max(dirtyEnd, ((DirtyTimeWindow) function).getDirtyEnd());
+    	} else {
+    		allDirty = true;
+    	}
+    }
+    
+    @Override
+    public void store() {
+    	if (startTimes != null) {
+	    	System.arraycopy(startTimes, 0, storedStartTimes, 0, cachedCount);
+	    	System.arraycopy(durations, 0, storedDurations, 0, cachedCount);
+	    	System.arraycopy(contributions, 0, storedContributions, 0, cachedCount);
+	    	System.arraycopy(prefix, 0, storedPrefix, 0, cachedCount+1);
+	    	System.arraycopy(lineageCounts, 0, storedLineageCounts, 0, cachedCount);
+	    	System.arraycopy(intervalTypes, 0, storedIntervalTypes, 0, cachedCount);
+    	}
+    	storedCachedCount = cachedCount;
+    	epochs.store();
+    	super.store();
+    }
+    
+    @Override
+    public void restore() {
+    	double[] tmp = startTimes; startTimes = storedStartTimes; storedStartTimes = tmp;
+    	tmp = durations; durations = storedDurations; storedDurations = tmp;
+    	tmp = contributions; contributions = storedContributions; storedContributions = tmp;
+    	tmp = prefix; prefix = storedPrefix; storedPrefix = tmp;
+    	int[] tmp2 = lineageCounts; lineageCounts = storedLineageCounts; storedLineageCounts = tmp2;
+    	IntervalType[] tmp3 = intervalTypes; intervalTypes = storedIntervalTypes; storedIntervalTypes = tmp3;
+    	int tmp4 = cachedCount; cachedCount = storedCachedCount; storedCachedCount = tmp4;
+    	
+    	epochs.restore();
+    	epochsDirty = false;
+    	allDirty = false;
+    	dirtyStart = Double.POSITIVE_INFINITY;
+    	dirtyEnd = Double.NEGATIVE_INFINITY;
+    	super.restore();
+    }
 }
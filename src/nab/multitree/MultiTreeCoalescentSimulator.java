@@ -0,0 +1,501 @@
+package nab.multitree;
+
+import java.io.FileNotFoundException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import beast.core.Description;
+import beast.core.Input;
+import beast.core.Input.Validate;
+import beast.core.Runnable;
+import beast.core.util.Log;
+import beast.evolution.tree.Node;
+import beast.evolution.tree.coalescent.IntervalType;
+import beast.evolution.tree.coalescent.PopulationFunction;
+import beast.util.Randomizer;
+import nab.skygrid.EpochCursor;
+import nab.skygrid.SweepablePopulationFunction;
+
+/**
+ * @author Nicola F. Mueller
+ */
+@Description("Simulates sets of cluster trees under the model of a MultiTreeCoalescent. Backwards in time, samples "
+		+ "are added either at the tip times of the trees of the coalescent or at times drawn from its sampling rate, "
+		+ "lineages coalesce at rate 1/Ne and every lineage leaves the local population, i.e. becomes the origin "
+		+ "of a cluster, at the immigration rate. Every simulated data set is written as one line per cluster.")
+public class MultiTreeCoalescentSimulator extends Runnable {
+
+	final public Input<MultiTreeCoalescent> coalescentInput = new Input<>("multiTreeCoalescent",
+			"coalescent under which to simulate", Validate.REQUIRED);
+	final public Input<Integer> datasetsInput = new Input<>("datasets",
+			"number of data sets to simulate", 1);
+	final public Input<String> outputFileNameInput = new Input<>("outputFileName",
+			"file the simulated cluster trees are written to", Validate.REQUIRED);
+
+	MultiTreeCoalescent coalescent;
+	PopulationFunction popSize;
+	boolean rateIsBackwards;
+
+	// merged grid of all rate shifts, cell c lasts from grid[c-1] (or 0) to grid[c]
+	double[] grid;
+	double[] cellMigration;
+	double[] cellSampling;
+	// time after which at least one of the rates is not defined anymore
+	double horizon;
+
+	boolean hasInverseIntensity;
+	EpochCursor popCursor = new EpochCursor();
+	int cell;
+	Random random;
+	int nextNodeNr;
+
+	// attempts of simulateCluster before giving up
+	static final int MAX_ATTEMPTS = 100000;
+
+	public MultiTreeCoalescentSimulator() {
+	}
+
+	public MultiTreeCoalescentSimulator(MultiTreeCoalescent coalescent) {
+		setCoalescent(coalescent);
+	}
+
+	@Override
+	public void initAndValidate() {
+		setCoalescent(coalescentInput.get());
+	}
+
+	private void setCoalescent(MultiTreeCoalescent coalescent) {
+		this.coalescent = coalescent;
+		popSize = coalescent.popSizeInput.get();
+		rateIsBackwards = coalescent.rateIsBackwardsInput.get();
+		// not all population functions implement the inverse intensity
+		try {
+			popSize.getInverseIntensity(popSize.getIntensity(0.0));
+			hasInverseIntensity = true;
+		} catch (RuntimeException e) {
+			hasInverseIntensity = false;
+		}
+	}
+
+	/**
+	 * a simulated cluster, with node heights in time before the present
+	 */
+	public static class Cluster {
+		public Node root;
+		public double origin;
+		public int tipCount;
+
+		public double getYoungestTipTime() {
+			return getYoungestTipTime(root);
+		}
+
+		private double getYoungestTipTime(Node node) {
+			if (node.isLeaf())
+				return node.getHeight();
+			double min = Double.POSITIVE_INFINITY;
+			for (Node child : node.getChildren())
+				min = Math.min(min, getYoungestTipTime(child));
+			return min;
+		}
+	}
+
+	@Override
+	public void run() throws FileNotFoundException {
+		PrintStream out = new PrintStream(outputFileNameInput.get());
+		out.println("dataset\tcluster\ttips\ttipTime\trootLength\ttree");
+		Random random = new Random(Randomizer.nextLong());
+		double[] sampleTimes = coalescent.hasSamplingRate ? null : getSampleTimes(coalescent.intervals);
+		for (int d = 0; d < datasetsInput.get(); d++) {
+			List<Cluster> clusters = simulate(sampleTimes, random);
+			for (int c = 0; c < clusters.size(); c++) {
+				Cluster cluster = clusters.get(c);
+				double tipTime = cluster.getYoungestTipTime();
+				out.println(d + "\t" + c + "\t" + cluster.tipCount + "\t" + tipTime + "\t" +
+						(cluster.origin - cluster.root.getHeight()) + "\t" + toNewick(cluster.root) + ";");
+			}
+		}
+		out.close();
+		Log.info.println("Simulated " + datasetsInput.get() + " data sets to " + outputFileNameInput.get());
+	}
+
+	/**
+	 * @return the times of all sampling events of the intervals, relative to the first one
+	 */
+	static double[] getSampleTimes(MultiTreeIntervals intervals) {
+		int n = intervals.getIntervalCount();
+		double[] times = new double[n];
+		int count = 0;
+		double time = 0.0;
+		for (int i = 0; i < n; i++) {
+			time += intervals.getInterval(i);
+			if (intervals.getIntervalType(i) == IntervalType.SAMPLE)
+				times[count++] = time;
+		}
+		return Arrays.copyOf(times, count);
+	}
+
+	/**
+	 * simulates one set of clusters, using the given sample times, or simulating them from
+	 * the sampling rate of the coalescent if sampleTimes is null
+	 */
+	public List<Cluster> simulate(double[] sampleTimes, Random random) {
+		this.random = random;
+		setUpGrid();
+
+		if (sampleTimes == null) {
+			if (!coalescent.hasSamplingRate)
+				throw new IllegalArgumentException("either sample times or a sampling rate are required to simulate");
+			sampleTimes = simulateSampleTimes();
+		} else {
+			sampleTimes = sampleTimes.clone();
+			Arrays.sort(sampleTimes);
+			if (sampleTimes.length > 0 && sampleTimes[sampleTimes.length-1] > horizon)
+				throw new IllegalArgumentException("samples after the last rate shift at " + horizon + " cannot be simulated");
+		}
+
+		List<Cluster> clusters = new ArrayList<>();
+		List<Node> active = new ArrayList<>();
+		popCursor.reset();
+		cell = 0;
+		nextNodeNr = 0;
+
+		int next = 0;
+		double t = 0.0;
+		while (next < sampleTimes.length || active.size() > 0) {
+			if (active.isEmpty()) {
+				t = sampleTimes[next++];
+				active.add(newNode(t));
+				continue;
+			}
+
+			double limit = next < sampleTimes.length ? sampleTimes[next] : horizon;
+			int k = active.size();
+			double eventTime = nextEventTime(t, k * (k - 1) / 2.0, k, -Math.log(random.nextDouble()), limit);
+			if (eventTime > limit) {
+				t = limit;
+				if (next < sampleTimes.length) {
+					active.add(newNode(t));
+					next++;
+				} else {
+					// the rates are not defined beyond the horizon, so all remaining lineages leave there
+					for (Node node : active)
+						clusters.add(newCluster(node, t));
+					active.clear();
+				}
+				continue;
+			}
+
+			t = eventTime;
+			double coalescentRate = k * (k - 1) / 2.0 / popSize.getPopSize(t);
+			double migrationRate = k * cellMigration[cell] / (rateIsBackwards ? 1.0 : popSize.getPopSize(t));
+			if (random.nextDouble() * (coalescentRate + migrationRate) < coalescentRate) {
+				Node left = active.remove(random.nextInt(k));
+				Node right = active.remove(random.nextInt(k - 1));
+				Node parent = newNode(t);
+				parent.addChild(left);
+				parent.addChild(right);
+				active.add(parent);
+			} else {
+				clusters.add(newCluster(active.remove(random.nextInt(k)), t));
+			}
+		}
+		return clusters;
+	}
+
+	/**
+	 * simulates the tree of a single cluster with the given tips, whose heights have to be in
+	 * time before the present. This is the process above conditioned on none of the lineages
+	 * leaving before their common ancestor, which then leaves at the immigration rate. The
+	 * condition is met by rejection: the lineages leave at the immigration rate as in the
+	 * unconditioned process and the simulation restarts whenever one leaves early. The
+	 * nodes of the returned cluster are numbered following the tips.
+	 */
+	public Cluster simulateCluster(List<Node> tips, Random random) {
+		this.random = random;
+		setUpGrid();
+
+		List<Node> sorted = new ArrayList<>(tips);
+		sorted.sort((a, b) -> Double.compare(a.getHeight(), b.getHeight()));
+		for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+			Cluster cluster = tryCluster(sorted);
+			if (cluster != null)
+				return cluster;
+		}
+		throw new IllegalStateException("no tree without a lineage leaving before the common ancestor was found in "
+				+ MAX_ATTEMPTS + " attempts");
+	}
+
+	// one attempt of simulateCluster, returns null if a lineage leaves before the common ancestor
+	private Cluster tryCluster(List<Node> sorted) {
+		popCursor.reset();
+		cell = 0;
+		nextNodeNr = sorted.size();
+		for (Node tip : sorted)
+			tip.setParent(null);
+
+		List<Node> active = new ArrayList<>();
+		active.add(sorted.get(0));
+		int next = 1;
+		double t = sorted.get(0).getHeight();
+		while (true) {
+			int k = active.size();
+			boolean last = next == sorted.size();
+			double limit = last ? horizon : sorted.get(next).getHeight();
+			double eventTime = nextEventTime(t, k * (k - 1) / 2.0, k, -Math.log(random.nextDouble()), limit);
+			if (eventTime > limit) {
+				if (!last) {
+					t = limit;
+					active.add(sorted.get(next++));
+					continue;
+				}
+				// the rates are not defined beyond the horizon, so all remaining lineages leave there
+				if (k > 1)
+					return null;
+				return newCluster(active.get(0), horizon);
+			}
+
+			t = eventTime;
+			double coalescentRate = k * (k - 1) / 2.0 / popSize.getPopSize(t);
+			double migrationRate = k * cellMigration[cell] / (rateIsBackwards ? 1.0 : popSize.getPopSize(t));
+			if (random.nextDouble() * (coalescentRate + migrationRate) < coalescentRate) {
+				Node left = active.remove(random.nextInt(k));
+				Node right = active.remove(random.nextInt(k - 1));
+				Node parent = newNode(t);
+				parent.addChild(left);
+				parent.addChild(right);
+				active.add(parent);
+			} else {
+				// only the common ancestor of all tips may leave
+				if (k > 1 || !last)
+					return null;
+				return newCluster(active.get(0), t);
+			}
+		}
+	}
+
+	private Node newNode(double time) {
+		Node node = new Node();
+		node.setHeight(time);
+		node.setNr(nextNodeNr);
+		node.setID("t" + nextNodeNr);
+		nextNodeNr++;
+		return node;
+	}
+
+	private Cluster newCluster(Node root, double origin) {
+		Cluster cluster = new Cluster();
+		cluster.root = root;
+		cluster.origin = origin;
+		cluster.tipCount = countTips(root);
+		return cluster;
+	}
+
+	private int countTips(Node node) {
+		if (node.isLeaf())
+			return 1;
+		int count = 0;
+		for (Node child : node.getChildren())
+			count += countTips(child);
+		return count;
+	}
+
+	// merges the rate shifts of all functions of time and precomputes the rates per cell
+	private void setUpGrid() {
+		List<double[]> shifts = new ArrayList<>();
+		horizon = Double.POSITIVE_INFINITY;
+		if (popSize instanceof SweepablePopulationFunction)
+			shifts.add(((SweepablePopulationFunction) popSize).getShiftTimes());
+		double[] immigrationShifts = coalescent.immigrationRate.getShiftTimes();
+		shifts.add(immigrationShifts);
+		horizon = Math.min(horizon, immigrationShifts[immigrationShifts.length-1]);
+		if (coalescent.hasRateMultiplier) {
+			double[] multiplierShifts = coalescent.rateMulitplier.getShiftTimes();
+			shifts.add(multiplierShifts);
+			horizon = Math.min(horizon, multiplierShifts[multiplierShifts.length-1]);
+		}
+		if (coalescent.hasSamplingRate) {
+			double[] samplingShifts = coalescent.samplingRate.getShiftTimes();
+			shifts.add(samplingShifts);
+			horizon = Math.min(horizon, samplingShifts[samplingShifts.length-1]);
+		}
+
+		int total = 0;
+		for (double[] s : shifts)
+			total += s.length;
+		double[] all = new double[total];
+		int c = 0;
+		for (double[] s : shifts) {
+			System.arraycopy(s, 0, all, c, s.length);
+			c += s.length;
+		}
+		Arrays.sort(all);
+		int n = 0;
+		for (int i = 0; i < all.length; i++)
+			if (all[i] > 0 && all[i] <= horizon && (n == 0 || all[i] > all[n-1]))
+				all[n++] = all[i];
+		grid = Arrays.copyOf(all, n);
+
+		cellMigration = new double[n];
+		cellSampling = new double[n];
+		// interpolated rates are averaged over the cell, as in the likelihood
+		for (int i = 0; i < n; i++) {
+			double start = getCellStart(i);
+			double rate = coalescent.immigrationRate.getMeanRate(start, grid[i]);
+			if (coalescent.hasRateMultiplier)
+				rate += coalescent.rateMulitplier.getMeanRate(start, grid[i]);
+			cellMigration[i] = Math.exp(rate);
+			if (coalescent.hasSamplingRate)
+				cellSampling[i] = Math.exp(coalescent.samplingRate.getMeanRate(start, grid[i]));
+		}
+	}
+
+	private double getCellStart(int c) {
+		return c == 0 ? 0.0 : grid[c-1];
+	}
+
+	// samples are a Poisson process with intensity samplingRate*Ne, simulated by thinning in every cell
+	private double[] simulateSampleTimes() {
+		double[] times = new double[16];
+		int count = 0;
+		for (int c = 0; c < grid.length; c++) {
+			double start = getCellStart(c), end = grid[c];
+			double maxNe = Math.max(getPopSize(start), Math.max(getPopSize((start + end) / 2), getPopSize(Math.nextDown(end))));
+			if (Double.isInfinite(maxNe)) {
+				horizon = start;
+				break;
+			}
+			double maxRate = cellSampling[c] * maxNe;
+			if (maxRate <= 0)
+				continue;
+			double t = start;
+			while (true) {
+				t += -Math.log(random.nextDouble()) / maxRate;
+				if (t >= end)
+					break;
+				if (random.nextDouble() * maxNe < getPopSize(t)) {
+					if (count == times.length)
+						times = Arrays.copyOf(times, 2*count);
+					times[count++] = t;
+				}
+			}
+		}
+		popCursor.reset();
+		return Arrays.copyOf(times, count);
+	}
+
+	/**
+	 * returns the time of the next coalescent or migration event after t, given the number of
+	 * pairs that can coalesce, the number of lineages that can leave and the exponentially
+	 * distributed target of the cumulative hazard, or infinity if there is none before limit.
+	 * Lineages cannot leave after the horizon, but they can still coalesce.
+	 */
+	private double nextEventTime(double t, double coalescent, int leaving, double target, double limit) {
+		while (cell < grid.length && t >= grid[cell])
+			cell++;
+		while (true) {
+			double end, m;
+			if (cell < grid.length) {
+				end = Math.min(grid[cell], limit);
+				m = leaving * cellMigration[cell];
+			} else {
+				if (leaving > 0 || coalescent == 0)
+					return Double.POSITIVE_INFINITY;
+				end = Math.min(t + Math.max(1.0, t), limit);
+				m = 0.0;
+			}
+			double hazard = getHazard(t, end, coalescent, m);
+			if (cell >= grid.length && hazard == 0)
+				return Double.POSITIVE_INFINITY;
+			if (hazard >= target)
+				return invertHazard(t, end, coalescent, m, target);
+			target -= hazard;
+			if (end >= limit)
+				return Double.POSITIVE_INFINITY;
+			t = end;
+			if (cell < grid.length)
+				cell++;
+		}
+	}
+
+	private double getHazard(double start, double end, double coalescent, double m) {
+		if (end <= start)
+			return 0.0;
+		double integral = getIntegral(start, end);
+		return coalescent * integral + m * (rateIsBackwards ? (end - start) : integral);
+	}
+
+	// finds x in [start, end] at which the cumulative hazard from start reaches target
+	private double invertHazard(double start, double end, double coalescent, double m, double target) {
+		if (coalescent == 0 && rateIsBackwards)
+			return start + target / m;
+		if (hasInverseIntensity && (!rateIsBackwards || m == 0)) {
+			double x = popSize.getInverseIntensity(popSize.getIntensity(start) + target / (coalescent + m));
+			if (x >= start && x <= end)
+				return x;
+		}
+
+		// safeguarded Newton iterations on the cumulative hazard, whose derivative is the hazard rate
+		double lower = start, upper = end;
+		double x = start + target / Math.max(getRate(start, coalescent, m), 1e-300);
+		if (!(x > lower && x < upper))
+			x = (lower + upper) / 2;
+		for (int i = 0; i < 100; i++) {
+			double f = getHazard(start, x, coalescent, m) - target;
+			if (Math.abs(f) <= 1e-12 * Math.max(1.0, target))
+				return x;
+			if (f > 0)
+				upper = x;
+			else
+				lower = x;
+			double rate = getRate(x, coalescent, m);
+			double newX = rate > 0 ? x - f / rate : Double.NaN;
+			x = newX > lower && newX < upper ? newX : (lower + upper) / 2;
+			if (upper - lower <= 1e-14 * Math.max(1.0, upper))
+				return x;
+		}
+		return x;
+	}
+
+	private double getRate(double t, double coalescent, double m) {
+		double invNe = 1.0 / getPopSize(t);
+		return coalescent * invNe + m * (rateIsBackwards ? 1.0 : invNe);
+	}
+
+	private double getPopSize(double t) {
+		if (popSize instanceof SweepablePopulationFunction)
+			return ((SweepablePopulationFunction) popSize).getPopSize(t, popCursor);
+		return popSize.getPopSize(t);
+	}
+
+	private double getIntegral(double start, double end) {
+		if (popSize instanceof SweepablePopulationFunction)
+			return ((SweepablePopulationFunction) popSize).getIntegral(start, end, popCursor);
+		return popSize.getIntegral(start, end);
+	}
+
+	static String toNewick(Node node) {
+		StringBuilder buf = new StringBuilder();
+		appendNewick(node, buf);
+		return buf.toString();
+	}
+
+	private static void appendNewick(Node node, StringBuilder buf) {
+		if (node.isLeaf()) {
+			buf.append(node.getID());
+		} else {
+			buf.append("(");
+			for (int i = 0; i < node.getChildCount(); i++) {
+				if (i > 0)
+					buf.append(",");
+				appendNewick(node.getChildren().get(i), buf);
+			}
+			buf.append(")");
+		}
+		if (node.getParent() != null)
+			buf.append(":").append(node.getParent().getHeight() - node.getHeight());
+	}
+
+}
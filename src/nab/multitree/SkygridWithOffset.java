@@ -8,13 +8,17 @@ import beast.core.Description;
 import beast.core.Input;
 import beast.core.parameter.RealParameter;
 import beast.evolution.tree.coalescent.PopulationFunction;
+import nab.skygrid.DirtyTimeWindow;
+import nab.skygrid.EpochCursor;
+import nab.skygrid.SweepablePopulationFunction;
+import nab.skygrid.TimeGrid;
 
 
 /**
  * @author Nicola F. Mueller
  */
 @Description("Skygrid style population prior that .")
-public class SkygridWithOffset extends PopulationFunction.Abstract {
+public class SkygridWithOffset extends PopulationFunction.Abstract implements SweepablePopulationFunction, DirtyTimeWindow {
 	
     final public Input<RealParameter> logNeInput = new Input<>("logNe",
             "Nes over time in log space", Input.Validate.REQUIRED);
@@ -28,13 +32,19 @@ public class SkygridWithOffset extends PopulationFunction.Abstract {
     //
     RealParameter logNe;
     RealParameter rateShifts;
+    TimeGrid grid;
     Double offset;
-    
+
+    // time window over which the values changed in the current proposal
+    double dirtyStart = Double.NEGATIVE_INFINITY;
+    double dirtyEnd = Double.POSITIVE_INFINITY;
+
 
     @Override
 	public void initAndValidate() {
     	logNe = logNeInput.get();
     	rateShifts = rateShiftsInput.get();
+    	grid = new TimeGrid(rateShifts);
     	logNe.setDimension(rateShifts.getDimension());    	
     	offset = offsetInput.get();
     }
@@ -47,26 +57,36 @@ public class SkygridWithOffset extends PopulationFunction.Abstract {
 
 
 	@Override
-	public double getPopSize(double t) {				
-		return logNe.getArrayValue(getIntervalNr(t));
+	public double getPopSize(double t) {
+		return getPopSize(t, new EpochCursor());
+	}
+
+	@Override
+	public double getPopSize(double t, EpochCursor cursor) {
+		return logNe.getArrayValue(grid.seek(t + offset, cursor));
 	}
 
 	
     @Override
 	public double getIntegral(double start, double finish) {
+		return getIntegral(start, finish, new EpochCursor());
+	}
+
+    @Override
+	public double getIntegral(double start, double finish, EpochCursor cursor) {
     	if (start==finish)
     		return 0.0;
     	
     	// get the interval "start" is in
-    	int first_int = getIntervalNr(start);
+    	int first_int = grid.seek(start + offset, cursor);
     	// get the interval "finish" is in
-    	int last_int = getIntervalNr(finish);
+    	int last_int = grid.seek(finish + offset, cursor);
     	
     	double weighted = 0.0;
     	double curr_time = start; 
 
     	for (int i = first_int; i <= last_int;i++) {
-    		if (i>=rateShifts.getDimension()) {
+    		if (i>=grid.getDimension()) {
     			System.err.println("index out of range, return neg inf");
     			return Double.POSITIVE_INFINITY;
     		}
@@ -85,18 +105,9 @@ public class SkygridWithOffset extends PopulationFunction.Abstract {
 		throw new IllegalArgumentException("Not implemented");
 	}
 	
-	private int getIntervalNr(double t) {
-		// check which interval t + offset is in
-		for (int i = 0; i < rateShifts.getDimension(); i++)
-			if ((t+offset)<rateShifts.getArrayValue(i))
-				return i;
-		
-		// after the last interval, just keep using the last element
-		return rateShifts.getDimension();					
-	}
 
 	private double getTime(int i) {
-		return rateShifts.getArrayValue(i)-offset;
+		return grid.getTime(i)-offset;
 	}
 
 
@@ -106,4 +117,60 @@ public class SkygridWithOffset extends PopulationFunction.Abstract {
 		throw new IllegalArgumentException("Not implemented");
 	}
 
+	@Override
+	protected boolean requiresRecalculation() {
+		grid.update();
+		updateDirtyWindow();
+		return super.requiresRecalculation();
+	}
+
+	@Override
+	protected void store() {
+		grid.store();
+		super.store();
+	}
+
+	@Override
+	protected void restore() {
+		grid.restore();
+		super.restore();
+	}
+
+	@Override
+	public double[] getShiftTimes() {
+		double[] times = new double[grid.getDimension()];
+		for (int i = 0; i < times.length; i++)
+			times[i] = grid.getTime(i) - offset;
+		return times;
+	}
+
+	@Override
+	public double getDirtyStart() {
+		return dirtyStart;
+	}
+
+	@Override
+	public double getDirtyEnd() {
+		return dirtyEnd;
+	}
+
+	// finds the time window affected by the elements that changed in this proposal
+	private void updateDirtyWindow() {
+		dirtyStart = Double.POSITIVE_INFINITY;
+		dirtyEnd = Double.NEGATIVE_INFINITY;
+		if (!rateShifts.somethingIsDirty()) {
+			for (int i = 0; i < logNe.getDimension(); i++) {
+				if (logNe.isDirty(i)) {
+					dirtyStart = Math.min(dirtyStart, DirtyTimeWindow.getEpochStart(rateShifts, i) - offset);
+					dirtyEnd = Math.max(dirtyEnd, DirtyTimeWindow.getEpochEnd(rateShifts, i) - offset);
+				}
+			}
+		}
+		// the change cannot be attributed to single elements, so everything is dirty
+		if (dirtyStart > dirtyEnd) {
+			dirtyStart = Double.NEGATIVE_INFINITY;
+			dirtyEnd = Double.POSITIVE_INFINITY;
+		}
+	}
+
 }
\ No newline at end of file
@@ -0,0 +1,538 @@
+package nab.multitree;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SplittableRandom;
+
+import beast.evolution.tree.Node;
+import beast.evolution.tree.Tree;
+import beast.evolution.tree.coalescent.IntervalType;
+
+/**
+ * One stochastic mapping of the migration events onto the trees of a
+ * MappedMultitreeMascot. The mapping only reads the forward trajectory, the
+ * tree intervals and the migration rates, and keeps all of its state, including
+ * its random number stream, to itself. Several mappings can therefore be drawn
+ * from the same forward pass in parallel.
+ *
+ * Migration events are recorded as primitive arrays of (lineage, time, fromState, 
+ * toState), where from and to are forwards in time, together with the sampled 
+ * state of every node and tree origin. Copies of the trees with the migration 
+ * events as single child nodes are only built when they are asked for.
+ *
+ * Between two stored points of a lineage, migration events are either sampled
+ * using a trapezoid approximation of the hazard of leaving the current state or,
+ * if uniformized rates are given, exactly by endpoint conditioned uniformization.
+ *
+ * @author Nicola Felix Mueller
+ */
+public class StochasticMapping {
+
+	final StructuredMultiTreeIntervals treeIntervals;
+	final int states;
+
+	// migration events in the order in which they were sampled, i.e. backwards from the origins
+	int eventCount;
+	int[] eventLineage = new int[16];
+	double[] eventTime = new double[16];
+	int[] eventFrom = new int[16];
+	int[] eventTo = new int[16];
+
+	// sampled state of every lineage at its node, -1 if not mapped
+	int[] nodeStates;
+	// state and time of the origin above the root of every tree
+	int[] originStates;
+	double[] originTimes;
+
+	// time spent by all lineages in every state, per rates epoch as [epoch*states + state]
+	double[] dwellTimes = new double[0];
+	int currentEpoch;
+
+	List<Tree> mappedTrees;
+
+	ForwardTrajectory trajectory;
+	SplittableRandom random;
+
+	// migration rates and interval lengths of every rates epoch
+	double[][] epochMigrationRates;
+	double[] epochIntervals;
+	double[] migrationRates;
+	// uniformized migration rates of every rates epoch, null if the trapezoid approximation is used
+	UniformizedRates[] epochUniformized;
+	UniformizedRates uniformized;
+
+	// buffers used by the uniformization sampler
+	double[] poissonWeights = new double[16];
+	double[] jumpTimes = new double[16];
+	int[] jumpStates = new int[16];
+	double[] stateWeights;
+
+	List<Integer> activeLineages = new ArrayList<>();
+	List<Integer> activeStates = new ArrayList<>();
+
+	public StochasticMapping(StructuredMultiTreeIntervals treeIntervals, int states) {
+		this.treeIntervals = treeIntervals;
+		this.states = states;
+		stateWeights = new double[states];
+		int lineageCount = 0;
+		for (Tree t : treeIntervals.treeInput.get())
+			lineageCount += t.getNodeCount();
+		nodeStates = new int[lineageCount];
+		originStates = new int[treeIntervals.treeInput.get().size()];
+		originTimes = new double[originStates.length];
+	}
+
+	/**
+	 * samples a mapping given the state probabilities in the trajectory, epochUniformized 
+	 * can be null to use the trapezoid approximation
+	 */
+	public void sample(ForwardTrajectory trajectory, double[][] epochMigrationRates, double[] epochIntervals,
+			UniformizedRates[] epochUniformized, SplittableRandom random) {
+		this.trajectory = trajectory;
+		this.epochMigrationRates = epochMigrationRates;
+		this.epochUniformized = epochUniformized;
+		this.epochIntervals = epochIntervals;
+		this.random = random;
+
+		eventCount = 0;
+		Arrays.fill(nodeStates, -1);
+		if (dwellTimes.length != epochIntervals.length * states)
+			dwellTimes = new double[epochIntervals.length * states];
+		else
+			Arrays.fill(dwellTimes, 0.0);
+		mappedTrees = null;
+		resample(trajectory.treeInterval, trajectory.ratesInterval, trajectory.lastRateShift);
+	}
+
+	private void resample(int treeInterval, int ratesInterval, double lastRateShift) {
+		treeInterval--;
+
+		activeStates.clear();
+		activeLineages.clear();
+
+		setEpoch(ratesInterval);
+
+		double currTime = treeIntervals.rootHeight;
+
+		// start by sampling the state at the origin of the last tree
+		introduceDown(treeInterval, currTime);
+
+		double nextTreeEvent = treeIntervals.getInterval(treeInterval);
+		double nextRateShift = currTime - lastRateShift;
+
+		double nextEventTime;
+		do {
+			nextEventTime = Math.min(nextTreeEvent, nextRateShift);
+			if (nextEventTime > 0) {
+				sampleMigrationEvents(currTime, currTime - nextEventTime);
+				currTime -= nextEventTime;
+			}
+
+			if (nextTreeEvent <= nextRateShift) {
+				if (treeIntervals.getIntervalType(treeInterval - 1) == IntervalType.COALESCENT)
+					coalesceDown(treeInterval - 1);
+
+				if (treeIntervals.getIntervalType(treeInterval - 1) == IntervalType.SAMPLE)
+					sampleDown(treeInterval - 1);
+
+				if (treeIntervals.getIntervalType(treeInterval - 1) == IntervalType.MIGRATION)
+					introduceDown(treeInterval - 1, currTime);
+
+				treeInterval--;
+				nextRateShift -= nextTreeEvent;
+				try {
+					nextTreeEvent = treeIntervals.getInterval(treeInterval);
+				} catch (Exception e) {
+					break;
+				}
+			} else {
+				nextTreeEvent -= nextRateShift;
+				ratesInterval--;
+				setEpoch(ratesInterval);
+				if (ratesInterval == 0) {
+					nextRateShift = Double.POSITIVE_INFINITY;
+				}else {
+					nextRateShift = epochIntervals[ratesInterval];
+				}
+			}
+		} while (treeInterval > 0);
+	}
+
+	private void setEpoch(int epoch) {
+		currentEpoch = epoch;
+		migrationRates = epochMigrationRates[epoch];
+		if (epochUniformized != null)
+			uniformized = epochUniformized[epoch];
+	}
+
+	private void sampleMigrationEvents(double startTime, double endTime) {
+		for (int i = 0; i < activeLineages.size(); i++) {
+			if (uniformized != null)
+				sampleMigrationEventsUniformization(activeLineages.get(i), i, startTime, endTime);
+			else
+				sampleMigrationEventsLineage(activeLineages.get(i), i, startTime, endTime);
+		}
+	}
+
+	/**
+	 * samples the migration history of a lineage between startTime and endTime step by
+	 * step between the stored points. For every step, the state at the lower point is
+	 * drawn proportional to its stored probability times the probability of migrating 
+	 * to the known state at the upper point, and the path in between is drawn given both 
+	 * end states by uniformization
+	 */
+	private void sampleMigrationEventsUniformization(int nodeNr, int index, double startTime, double endTime) {
+		int currTimeInterval = trajectory.indexOf(nodeNr, startTime);
+		if (currTimeInterval == -1)
+			throw new IllegalArgumentException("timing not found");
+
+		double currentTime = startTime;
+		double lastEventTime = startTime;
+
+		while (currentTime > (endTime+1e-10) && currTimeInterval > 0) {
+			int upperState = activeStates.get(index);
+			double lowerTime = trajectory.getTime(nodeNr, currTimeInterval - 1);
+			double dt = currentTime - lowerTime;
+
+			if (poissonWeights.length < uniformized.getPowerCount())
+				poissonWeights = new double[uniformized.getPowerCount()];
+			int maxJumps = uniformized.getPoissonWeights(dt, poissonWeights);
+
+			// sample the state at the lower point
+			double total = 0;
+			for (int b = 0; b < states; b++) {
+				double p = trajectory.getProb(nodeNr, currTimeInterval - 1, b);
+				double transition = 0;
+				if (p > 0)
+					for (int n = 0; n <= maxJumps; n++)
+						transition += poissonWeights[n] * uniformized.getPower(n, b, upperState);
+				stateWeights[b] = p * transition;
+				total += stateWeights[b];
+			}
+			int lowerState = total > 0 ? randomChoicePDF(stateWeights) : upperState;
+
+			// sample the number of jumps of the uniformized process given both end states
+			double transition = 0;
+			for (int n = 0; n <= maxJumps; n++)
+				transition += poissonWeights[n] * uniformized.getPower(n, lowerState, upperState);
+			double U = random.nextDouble() * transition;
+			int jumps = 0;
+			for (; jumps < maxJumps; jumps++) {
+				U -= poissonWeights[jumps] * uniformized.getPower(jumps, lowerState, upperState);
+				if (U < 0)
+					break;
+			}
+
+			if (jumps > 0) {
+				if (jumpTimes.length < jumps + 1) {
+					jumpTimes = new double[2*(jumps + 1)];
+					jumpStates = new int[2*(jumps + 1)];
+				}
+				for (int j = 1; j <= jumps; j++)
+					jumpTimes[j] = lowerTime + random.nextDouble() * dt;
+				Arrays.sort(jumpTimes, 1, jumps + 1);
+
+				// states after every jump, backwards in time from the lower to the upper point
+				jumpStates[0] = lowerState;
+				for (int j = 1; j <= jumps; j++) {
+					int from = jumpStates[j-1];
+					double sum = 0;
+					for (int c = 0; c < states; c++) {
+						stateWeights[c] = uniformized.getPower(1, from, c) * uniformized.getPower(jumps - j, c, upperState);
+						sum += stateWeights[c];
+					}
+					jumpStates[j] = sum > 0 ? randomChoicePDF(stateWeights) : upperState;
+				}
+
+				// events are added from the top, dropping the virtual jumps
+				for (int j = jumps; j >= 1; j--) {
+					if (jumpStates[j] != jumpStates[j-1]) {
+						dwellTimes[currentEpoch*states + jumpStates[j]] += lastEventTime - jumpTimes[j];
+						addEvent(nodeNr, jumpTimes[j], jumpStates[j], jumpStates[j-1]);
+						lastEventTime = jumpTimes[j];
+					}
+				}
+			}
+
+			activeStates.set(index, lowerState);
+			currentTime = lowerTime;
+			currTimeInterval--;
+		}
+		dwellTimes[currentEpoch*states + activeStates.get(index)] += lastEventTime - endTime;
+	}
+
+	private void sampleMigrationEventsLineage(Integer nodeNr, int index, double startTime, double endTime) {
+		double K = -Math.log(random.nextDouble());
+		double I = 0.0;
+		double currentTime = startTime;
+		double lastEventTime = startTime;
+
+		int currTimeInterval = trajectory.indexOf(nodeNr, startTime);
+		if (currTimeInterval == -1) {
+			for (int i = 0; i < trajectory.getCount(nodeNr); i++)
+				System.err.println(trajectory.getTime(nodeNr, i) - startTime);
+
+			throw new IllegalArgumentException("timing not found");
+		}
+
+		// copies of the stored probabilities, since they are interpolated in place below
+		double[] prob_start = new double[states];
+		double[] prob_end = new double[states];
+		double[] integral_state = new double[states];
+		trajectory.getProbs(nodeNr, currTimeInterval, prob_start);
+
+		while (currentTime > (endTime+1e-10)) {
+			trajectory.getProbs(nodeNr, currTimeInterval - 1, prob_end);
+
+			int currState = activeStates.get(index);
+
+			double dt = currentTime - trajectory.getTime(nodeNr, currTimeInterval - 1);
+
+			double sumInt = 0;
+			for (int i = 0; i < states; i++) {
+				integral_state[i] = 0;
+				if (i != currState) {
+					double rates_start = migrationRates[i * states + currState] *
+							prob_start[i] / prob_start[currState];
+					double rates_end = migrationRates[i * states + currState] *
+							prob_end[i] / prob_end[currState];
+
+					if (prob_start[currState] <= 0 || prob_end[currState] <= 0) {
+						integral_state[i] = Double.POSITIVE_INFINITY;
+					}else if (prob_end[i] <= 0 || prob_start[i] <= 0){
+						integral_state[i] = 0;
+					}else{
+						integral_state[i] = 0.5 * (rates_end + rates_start) * dt;
+					}
+
+					sumInt += integral_state[i];
+				}
+			}
+
+			if ((I + sumInt) > K) {
+				// approximate the height of the new event
+				double intermediatePoint = Math.max(0.01, (K - I) / sumInt);
+
+				currentTime = currentTime - dt * (intermediatePoint);
+
+				// update stateprobs for this point
+				for (int i = 0; i < states; i++)
+					prob_start[i] = (intermediatePoint) * prob_start[i] + (1-intermediatePoint) * prob_end[i];
+
+				int newState = -1;
+				boolean hasInf = false;
+				for (int i = 0; i < integral_state.length; i ++) {
+					if (integral_state[i] == Double.POSITIVE_INFINITY && prob_end[i] > 0) {
+						newState = i;
+						hasInf = true;
+					}
+				}
+
+				// sample migration event
+				if (!hasInf)
+					newState = randomChoicePDF(integral_state);
+
+				if (newState == currState)
+					throw new IllegalStateException("sampled a migration event into the current state " + currState);
+
+				addEvent(nodeNr, currentTime, currState, newState);
+				dwellTimes[currentEpoch*states + currState] += lastEventTime - currentTime;
+				lastEventTime = currentTime;
+				activeStates.set(index, newState);
+
+				// reset "timers"
+				K = -Math.log(random.nextDouble());
+				I = 0.0;
+			} else {
+				I += sumInt;
+				currTimeInterval--;
+				if (currTimeInterval == 0)
+					break;
+
+				trajectory.getProbs(nodeNr, currTimeInterval, prob_start);
+				currentTime = trajectory.getTime(nodeNr, currTimeInterval);
+			}
+		}
+		dwellTimes[currentEpoch*states + activeStates.get(index)] += lastEventTime - endTime;
+	}
+
+	private void coalesceDown(int currTreeInterval) {
+		int coalLines0 = treeIntervals.getLineagesRemoved(currTreeInterval, 0);
+		int coalLines1 = treeIntervals.getLineagesRemoved(currTreeInterval, 1);
+
+        int lineageToAdd = treeIntervals.getLineagesAdded(currTreeInterval);
+
+		int currState = activeStates.get(activeLineages.indexOf(lineageToAdd));
+		nodeStates[lineageToAdd] = currState;
+		activeStates.remove(activeLineages.indexOf(lineageToAdd));
+		activeLineages.remove(activeLineages.indexOf(lineageToAdd));
+
+		activeLineages.add(coalLines0);
+		activeLineages.add(coalLines1);
+		activeStates.add(currState);
+		activeStates.add(currState);
+	}
+
+	private void sampleDown(int currTreeInterval) {
+		int incomingLines = treeIntervals.getLineagesAdded(currTreeInterval);
+
+		nodeStates[incomingLines] = activeStates.get(activeLineages.indexOf(incomingLines));
+
+		activeStates.remove(activeLineages.indexOf(incomingLines));
+		activeLineages.remove(activeLineages.indexOf(incomingLines));
+	}
+
+	private void introduceDown(int currTreeInterval, double time) {
+    	int coalLines0 = treeIntervals.getLineagesRemoved(currTreeInterval, 0);
+    	activeLineages.add(coalLines0);
+
+        int[] treenr = treeIntervals.getTree(coalLines0);
+
+        // sample the state at the origin
+		double[] originProbs = new double[states];
+		trajectory.getProbs(coalLines0, 0, originProbs);
+		int originState = randomChoicePDF(originProbs);
+		originStates[treenr[0]] = originState;
+		originTimes[treenr[0]] = time;
+    	activeStates.add(originState);
+	}
+
+	private void addEvent(int lineage, double time, int from, int to) {
+		if (eventCount == eventLineage.length) {
+			eventLineage = Arrays.copyOf(eventLineage, 2*eventCount);
+			eventTime = Arrays.copyOf(eventTime, 2*eventCount);
+			eventFrom = Arrays.copyOf(eventFrom, 2*eventCount);
+			eventTo = Arrays.copyOf(eventTo, 2*eventCount);
+		}
+		eventLineage[eventCount] = lineage;
+		eventTime[eventCount] = time;
+		eventFrom[eventCount] = from;
+		eventTo[eventCount] = to;
+		eventCount++;
+	}
+
+	public int getEventCount() {
+		return eventCount;
+	}
+
+	public int getEventLineage(int i) {
+		return eventLineage[i];
+	}
+
+	/**
+	 * time of event i in the time frame of the tree intervals, i.e. including the tree offsets
+	 */
+	public double getEventTime(int i) {
+		return eventTime[i];
+	}
+
+	/**
+	 * state of the lineage before event i, forwards in time
+	 */
+	public int getEventFrom(int i) {
+		return eventFrom[i];
+	}
+
+	/**
+	 * state of the lineage after event i, forwards in time
+	 */
+	public int getEventTo(int i) {
+		return eventTo[i];
+	}
+
+	public int getNodeState(int lineage) {
+		return nodeStates[lineage];
+	}
+
+	public int getOriginState(int tree) {
+		return originStates[tree];
+	}
+
+	public double getOriginTime(int tree) {
+		return originTimes[tree];
+	}
+
+	public int getEpochCount() {
+		return dwellTimes.length / states;
+	}
+
+	/**
+	 * total time the lineages spent in state during the rates epoch
+	 */
+	public double getDwellTime(int epoch, int state) {
+		return dwellTimes[epoch*states + state];
+	}
+
+	/**
+	 * returns copies of the trees with an origin node above every root and the migration
+	 * events added as single child nodes, built from the event arrays on the first call
+	 */
+	public List<Tree> getMappedTrees() {
+		if (mappedTrees != null)
+			return mappedTrees;
+
+		mappedTrees = new ArrayList<>();
+		for (Tree t : treeIntervals.treeInput.get()){
+			mappedTrees.add(new Tree(t.getRoot().copy()));
+			mappedTrees.get(mappedTrees.size()-1).getRoot().sort();
+		}
+
+		for (int i = 0; i < nodeStates.length; i++) {
+			if (nodeStates[i] != -1) {
+				int[] treenr = treeIntervals.getTree(i);
+				mappedTrees.get(treenr[0]).getNode(treenr[1]).setMetaData("location", nodeStates[i]);
+			}
+		}
+
+		for (int i = 0; i < mappedTrees.size(); i++) {
+			Node root = mappedTrees.get(i).getRoot();
+			Node origin = new Node();
+			origin.setHeight(originTimes[i] - treeIntervals.offset[i]);
+			origin.setNr(root.getNr());
+
+			origin.addChild(root);
+			root.setParent(origin);
+
+			mappedTrees.get(i).setRoot(origin);
+		}
+
+		// events are stored backwards from the origins, so every new one goes directly above the node
+		for (int i = 0; i < eventCount; i++) {
+			int[] treenr = treeIntervals.getTree(eventLineage[i]);
+			Node n = mappedTrees.get(treenr[0]).getNode(treenr[1]);
+			Node p = n.getParent();
+
+			Node migNode = new Node();
+			migNode.setMetaData("location", eventFrom[i]);
+			migNode.setHeight(eventTime[i] - treeIntervals.offset[treenr[0]]);
+			migNode.setNr(Integer.MAX_VALUE);
+
+			migNode.setParent(p);
+			migNode.addChild(n);
+
+			p.removeChild(n);
+			p.addChild(migNode);
+
+			n.setParent(migNode);
+		}
+		return mappedTrees;
+	}
+
+	/**
+	 * same as Randomizer.randomChoicePDF, but using the random stream of this mapping
+	 */
+	private int randomChoicePDF(double[] pdf) {
+		double total = 0;
+		for (double p : pdf)
+			total += p;
+		double U = random.nextDouble() * total;
+		for (int i = 0; i < pdf.length; i++) {
+			U -= pdf[i];
+			if (U < 0.0)
+				return i;
+		}
+		throw new IllegalArgumentException("randomChoicePDF falls through -- negative, infinite or NaN components in input distribution, or all zeroes?");
+	}
+
+}
@@ -0,0 +1,118 @@
+package nab.multitree;
+
+/**
+ * Uniformization of the backwards in time migration process of one rates epoch.
+ * With mu the largest total migration rate out of any state, the generator Q is
+ * written as mu*(R - I), with R = I + Q/mu a stochastic matrix. Transition
+ * probabilities over a time dt are then Poisson mixtures of the powers of R,
+ * which are precomputed up to the largest number of jumps that has to be
+ * considered for steps up to maxStep. The powers are only read once built, such
+ * that the same object can be used by several mappings in parallel.
+ *
+ * @author Nicola Felix Mueller
+ */
+public class UniformizedRates {
+
+	final int states;
+	final double mu;
+	// powers of R, stored as powers[n][from*states + to]
+	final double[][] powers;
+
+	/**
+	 * @param migrationRates backwards in time migration rates, stored as [from*states + to]
+	 */
+	public UniformizedRates(double[] migrationRates, int states, double maxStep) {
+		this.states = states;
+
+		double maxRate = 0;
+		for (int i = 0; i < states; i++) {
+			double out = 0;
+			for (int j = 0; j < states; j++)
+				if (i != j)
+					out += migrationRates[i*states + j];
+			maxRate = Math.max(maxRate, out);
+		}
+		mu = maxRate;
+
+		int maxJumps = getMaxJumps(maxStep);
+		powers = new double[maxJumps + 1][];
+		powers[0] = new double[states*states];
+		for (int i = 0; i < states; i++)
+			powers[0][i*states + i] = 1.0;
+		if (maxJumps == 0)
+			return;
+
+		double[] R = new double[states*states];
+		for (int i = 0; i < states; i++) {
+			double out = 0;
+			for (int j = 0; j < states; j++) {
+				if (i != j) {
+					R[i*states + j] = migrationRates[i*states + j] / mu;
+					out += R[i*states + j];
+				}
+			}
+			R[i*states + i] = 1.0 - out;
+		}
+		powers[1] = R;
+		for (int n = 2; n <= maxJumps; n++) {
+			double[] prev = powers[n-1];
+			double[] next = new double[states*states];
+			for (int i = 0; i < states; i++)
+				for (int k = 0; k < states; k++) {
+					double p = prev[i*states + k];
+					if (p == 0)
+						continue;
+					for (int j = 0; j < states; j++)
+						next[i*states + j] += p * R[k*states + j];
+				}
+			powers[n] = next;
+		}
+	}
+
+	/**
+	 * number of jumps of the uniformized process up to which the Poisson mixture is evaluated
+	 * for a step of length dt
+	 */
+	public int getMaxJumps(double dt) {
+		if (mu == 0)
+			return 0;
+		double x = mu * dt;
+		return (int) Math.ceil(x + 6*Math.sqrt(x) + 10);
+	}
+
+	/**
+	 * fills weights[n] with values proportional to the Poisson probabilities of n jumps of
+	 * the uniformized process in a step of length dt, scaled such that the largest is 1, and
+	 * returns the number of jumps considered, which is limited by the precomputed powers.
+	 * The weights are calculated in log space, exp(-mu*dt) underflows for long steps.
+	 */
+	public int getPoissonWeights(double dt, double[] weights) {
+		int n = Math.min(getMaxJumps(dt), powers.length - 1);
+		double x = mu * dt;
+		if (x <= 0) {
+			weights[0] = 1.0;
+			for (int i = 1; i <= n; i++)
+				weights[i] = 0.0;
+			return n;
+		}
+		final double logX = Math.log(x);
+		weights[0] = -x;
+		double max = weights[0];
+		for (int i = 1; i <= n; i++) {
+			weights[i] = weights[i-1] + logX - Math.log(i);
+			max = Math.max(max, weights[i]);
+		}
+		for (int i = 0; i <= n; i++)
+			weights[i] = Math.exp(weights[i] - max);
+		return n;
+	}
+
+	public double getPower(int n, int from, int to) {
+		return powers[n][from*states + to];
+	}
+
+	public int getPowerCount() {
+		return powers.length;
+	}
+
+}
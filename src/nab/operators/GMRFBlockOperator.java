@@ -0,0 +1,125 @@
+package nab.operators;
+
+import java.text.DecimalFormat;
+
+import beast.core.Description;
+import beast.core.Input;
+import beast.core.Input.Validate;
+import beast.core.Operator;
+import beast.core.parameter.RealParameter;
+import beast.util.Randomizer;
+import nab.skygrid.GMRFSkygridPrior;
+
+/**
+ * @author Nicola F. Mueller
+ */
+@Description("Proposes all log Ne's of a GMRF skygrid prior at once with a preconditioned Crank-Nicolson move "
+		+ "x' = mean + sqrt(1-beta^2)*(x-mean) + beta*xi, with xi drawn from the Gaussian with the tridiagonal "
+		+ "precision matrix of the prior. The move is reversible with respect to that Gaussian, such that "
+		+ "the Hastings ratio cancels the prior and acceptance only depends on the likelihood.")
+public class GMRFBlockOperator extends Operator {
+
+	final public Input<RealParameter> parameterInput = new Input<>("parameter",
+			"log Ne's to propose", Validate.REQUIRED);
+	final public Input<GMRFSkygridPrior> priorInput = new Input<>("gmrf",
+			"GMRF prior of the log Ne's, whose precision is used for the proposal", Validate.REQUIRED);
+	final public Input<Double> betaInput = new Input<>("beta",
+			"size of the move between 0 and 1, 1 proposes independently of the current values", 0.3);
+	final public Input<Double> kappaInput = new Input<>("kappa",
+			"precision around the mean used for the proposal if the prior is intrinsic (kappa = 0)", 1.0);
+	final public Input<Boolean> optimiseInput = new Input<>("optimise",
+			"flag to indicate that beta is to be optimised", true);
+
+	RealParameter parameter;
+	GMRFSkygridPrior prior;
+	double beta;
+
+	double[] diag, offDiag, cholDiag, cholOffDiag;
+	double[] x, noise;
+
+	@Override
+	public void initAndValidate() {
+		parameter = parameterInput.get();
+		prior = priorInput.get();
+		beta = betaInput.get();
+		if (beta <= 0 || beta > 1)
+			throw new IllegalArgumentException("beta has to be in (0,1]");
+	}
+
+	@Override
+	public double proposal() {
+		final int k = parameter.getDimension();
+		if (diag == null || diag.length != k) {
+			diag = new double[k];
+			offDiag = new double[Math.max(k-1, 0)];
+			cholDiag = new double[k];
+			cholOffDiag = new double[Math.max(k-1, 0)];
+			x = new double[k];
+			noise = new double[k];
+		}
+
+		double tau = prior.getPrecision();
+		if (tau <= 0)
+			return Double.NEGATIVE_INFINITY;
+		double kappa = prior.getKappa() > 0 ? prior.getKappa() : kappaInput.get();
+		double mean = prior.getMean();
+		GMRFSkygridPrior.fillPrecision(k, tau, kappa, diag, offDiag);
+		GMRFSkygridPrior.cholesky(diag, offDiag, cholDiag, cholOffDiag);
+
+		for (int i = 0; i < k; i++) {
+			x[i] = parameter.getArrayValue(i);
+			noise[i] = Randomizer.nextGaussian();
+		}
+		GMRFSkygridPrior.solveTransposed(cholDiag, cholOffDiag, noise);
+
+		double oldQuadratic = GMRFSkygridPrior.getQuadraticForm(x, mean, diag, offDiag);
+		double scale = Math.sqrt(1 - beta*beta);
+		for (int i = 0; i < k; i++) {
+			x[i] = mean + scale*(x[i] - mean) + beta*noise[i];
+			if (x[i] < parameter.getLower() || x[i] > parameter.getUpper())
+				return Double.NEGATIVE_INFINITY;
+		}
+		double newQuadratic = GMRFSkygridPrior.getQuadraticForm(x, mean, diag, offDiag);
+
+		for (int i = 0; i < k; i++)
+			parameter.setValue(i, x[i]);
+
+		// ratio of the Gaussian densities of the old and the new values
+		return 0.5*(newQuadratic - oldQuadratic);
+	}
+
+	@Override
+	public double getCoercableParameterValue() {
+		return beta;
+	}
+
+	@Override
+	public void setCoercableParameterValue(double value) {
+		beta = Math.max(1e-6, Math.min(1.0, value));
+	}
+
+	@Override
+	public void optimize(double logAlpha) {
+		if (optimiseInput.get()) {
+			// tune beta on the logit scale
+			double delta = calcDelta(logAlpha);
+			double logit = Math.log(beta / (1 - beta)) + delta;
+			setCoercableParameterValue(1 / (1 + Math.exp(-logit)));
+		}
+	}
+
+	@Override
+	public String getPerformanceSuggestion() {
+		double prob = m_nNrAccepted / (m_nNrAccepted + m_nNrRejected + 0.0);
+		double targetProb = getTargetAcceptanceProbability();
+		double ratio = prob / targetProb;
+		if (ratio > 2.0) ratio = 2.0;
+		if (ratio < 0.5) ratio = 0.5;
+		double newBeta = Math.min(1.0, beta * ratio);
+		DecimalFormat formatter = new DecimalFormat("#.###");
+		if (prob < 0.10 || prob > 0.40)
+			return "Try setting beta to about " + formatter.format(newBeta);
+		return "";
+	}
+
+}
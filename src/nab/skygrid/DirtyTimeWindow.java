@@ -0,0 +1,40 @@
+package nab.skygrid;
+
+import beast.core.parameter.RealParameter;
+
+/**
+ * Implemented by functions of time defined on a grid of rate shifts that can tell
+ * over which time window their values changed in the current proposal, such that
+ * callers only have to reevaluate the intervals overlapping that window.
+ *
+ * @author Nicola F. Mueller
+ */
+public interface DirtyTimeWindow {
+
+	/**
+	 * @return start of the time window over which the function changed,
+	 * positive infinity if nothing changed
+	 */
+	double getDirtyStart();
+
+	/**
+	 * @return end of the time window over which the function changed,
+	 * negative infinity if nothing changed
+	 */
+	double getDirtyEnd();
+
+	/**
+	 * start time of epoch i on a grid where epoch i lasts until rate shift i
+	 */
+	static double getEpochStart(RealParameter rateShifts, int i) {
+		return i == 0 ? Double.NEGATIVE_INFINITY : rateShifts.getArrayValue(i-1);
+	}
+
+	/**
+	 * end time of epoch i on a grid where epoch i lasts until rate shift i
+	 */
+	static double getEpochEnd(RealParameter rateShifts, int i) {
+		return i < rateShifts.getDimension() ? rateShifts.getArrayValue(i) : Double.POSITIVE_INFINITY;
+	}
+
+}
@@ -0,0 +1,46 @@
+package nab.skygrid;
+
+/**
+ * Remembers the epoch of the last time looked up on a grid of rate shifts. Looking
+ * up times in increasing (or decreasing) order, as when sweeping over the intervals
+ * of a tree, then costs amortized constant time instead of a scan over all rate shifts.
+ * The first lookup of a new or reset cursor finds the epoch by binary search.
+ * A cursor is not thread safe, every thread needs its own.
+ *
+ * @author Nicola F. Mueller
+ */
+public class EpochCursor {
+
+	int epoch = 0;
+	boolean located = false;
+
+	/**
+	 * @return the index of the first rate shift that is larger than t, or the number
+	 * of rate shifts if there is none, i.e. the same as TimeGrid.getEpoch(t)
+	 */
+	public int seek(double[] rateShifts, double t) {
+		final int dim = rateShifts.length;
+		if (!located) {
+			epoch = TimeGrid.getEpoch(rateShifts, t);
+			located = true;
+			return epoch;
+		}
+		if (epoch > dim)
+			epoch = dim;
+		while (epoch < dim && t >= rateShifts[epoch])
+			epoch++;
+		while (epoch > 0 && t < rateShifts[epoch-1])
+			epoch--;
+		return epoch;
+	}
+
+	public int getEpoch() {
+		return epoch;
+	}
+
+	public void reset() {
+		epoch = 0;
+		located = false;
+	}
+
+}
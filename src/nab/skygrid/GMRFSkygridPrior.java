@@ -0,0 +1,170 @@
+package nab.skygrid;
+
+import java.util.List;
+import java.util.Random;
+
+import beast.core.Description;
+import beast.core.Distribution;
+import beast.core.Input;
+import beast.core.Input.Validate;
+import beast.core.State;
+import beast.core.parameter.RealParameter;
+
+/**
+ * @author Nicola F. Mueller
+ */
+@Description("Gaussian Markov random field prior on log Ne's, i.e. a first order random walk on the differences "
+		+ "between neighbouring epochs with precision tau. With kappa > 0, the precision matrix tau*R + kappa*I "
+		+ "is proper and the log Ne's are shrunk towards the mean, with kappa = 0 the prior is the intrinsic random walk.")
+public class GMRFSkygridPrior extends Distribution {
+
+    public Input<RealParameter> NeLogInput = new Input<>(
+    		"NeLog", "input of effective population sizes", Validate.REQUIRED);
+
+    public Input<RealParameter> precisionInput = new Input<>(
+    		"precision", "precision tau of the differences between neighbouring log Ne's", Validate.REQUIRED);
+
+    public Input<Double> kappaInput = new Input<>(
+    		"kappa", "precision of every log Ne around the mean, 0 for the intrinsic random walk", 0.0);
+
+    public Input<Double> meanInput = new Input<>(
+    		"mean", "mean of the log Ne's, only used if kappa > 0", 0.0);
+
+    private RealParameter NeLog;
+    private RealParameter precision;
+
+    // tridiagonal precision matrix and its Cholesky factor
+    double[] diag, offDiag, cholDiag, cholOffDiag;
+
+    @Override
+    public void initAndValidate() {
+    	NeLog = NeLogInput.get();
+    	precision = precisionInput.get();
+    	if (kappaInput.get() < 0)
+    		throw new IllegalArgumentException("kappa has to be non negative");
+    }
+
+	@Override
+	public List<String> getArguments() {
+		return null;
+	}
+
+	@Override
+	public List<String> getConditions() {
+		return null;
+	}
+
+	@Override
+	public void sample(State state, Random random) {
+	}
+
+    public double calculateLogP() {
+    	final int k = NeLog.getDimension();
+    	final double tau = precision.getValue();
+    	final double kappa = kappaInput.get();
+    	if (tau <= 0) {
+    		logP = Double.NEGATIVE_INFINITY;
+    		return logP;
+    	}
+
+    	if (kappa == 0) {
+    		// intrinsic random walk, the precision matrix has rank k-1
+    		double sumSq = 0.0;
+    		for (int i = 1; i < k; i++) {
+    			double diff = NeLog.getArrayValue(i) - NeLog.getArrayValue(i-1);
+    			sumSq += diff*diff;
+    		}
+    		logP = 0.5*(k-1)*(Math.log(tau) - Math.log(2*Math.PI)) - 0.5*tau*sumSq;
+    		return logP;
+    	}
+
+    	double logDet = updateCholesky(k, tau, kappa);
+    	double quadratic = getQuadraticForm(NeLog.getDoubleValues(), meanInput.get(), diag, offDiag);
+    	logP = 0.5*logDet - 0.5*k*Math.log(2*Math.PI) - 0.5*quadratic;
+    	return logP;
+    }
+
+    // builds tau*R + kappa*I and factorizes it, returns the log determinant
+    private double updateCholesky(int k, double tau, double kappa) {
+    	if (diag == null || diag.length != k) {
+    		diag = new double[k];
+    		offDiag = new double[Math.max(k-1, 0)];
+    		cholDiag = new double[k];
+    		cholOffDiag = new double[Math.max(k-1, 0)];
+    	}
+    	fillPrecision(k, tau, kappa, diag, offDiag);
+    	return cholesky(diag, offDiag, cholDiag, cholOffDiag);
+    }
+
+    /**
+     * fills the diagonal and off diagonal of the precision matrix tau*R + kappa*I of a first order random walk
+     */
+    public static void fillPrecision(int k, double tau, double kappa, double[] diag, double[] offDiag) {
+    	for (int i = 0; i < k; i++) {
+    		int neighbours = (i > 0 ? 1 : 0) + (i < k-1 ? 1 : 0);
+    		diag[i] = tau*neighbours + kappa;
+    		if (i < k-1)
+    			offDiag[i] = -tau;
+    	}
+    }
+
+    /**
+     * Cholesky factorization Q = L L^T of a symmetric positive definite tridiagonal matrix in O(k),
+     * L is lower bidiagonal
+     * @return the log determinant of Q
+     */
+    public static double cholesky(double[] diag, double[] offDiag, double[] cholDiag, double[] cholOffDiag) {
+    	double logDet = 0.0;
+    	for (int i = 0; i < diag.length; i++) {
+    		double d = diag[i];
+    		if (i > 0) {
+    			cholOffDiag[i-1] = offDiag[i-1] / cholDiag[i-1];
+    			d -= cholOffDiag[i-1]*cholOffDiag[i-1];
+    		}
+    		if (d <= 0)
+    			throw new IllegalArgumentException("precision matrix is not positive definite");
+    		cholDiag[i] = Math.sqrt(d);
+    		logDet += 2*Math.log(cholDiag[i]);
+    	}
+    	return logDet;
+    }
+
+    /**
+     * solves L^T x = z in place by back substitution, such that x ~ N(0, Q^-1) if z ~ N(0, I)
+     */
+    public static void solveTransposed(double[] cholDiag, double[] cholOffDiag, double[] z) {
+    	for (int i = z.length-1; i >= 0; i--) {
+    		double v = z[i];
+    		if (i < z.length-1)
+    			v -= cholOffDiag[i]*z[i+1];
+    		z[i] = v / cholDiag[i];
+    	}
+    }
+
+    /**
+     * (x-mean)^T Q (x-mean) for the tridiagonal Q
+     */
+    public static double getQuadraticForm(double[] x, double mean, double[] diag, double[] offDiag) {
+    	double sum = 0.0;
+    	for (int i = 0; i < x.length; i++) {
+    		double xi = x[i] - mean;
+    		sum += diag[i]*xi*xi;
+    		if (i < x.length-1)
+    			sum += 2*offDiag[i]*xi*(x[i+1] - mean);
+    	}
+    	return sum;
+    }
+
+    public double getPrecision() {
+    	return precision.getValue();
+    }
+
+    public double getKappa() {
+    	return kappaInput.get();
+    }
+
+    public double getMean() {
+    	return meanInput.get();
+    }
+
+}
@@ -47,6 +47,17 @@ public class GrowthRateSmoothingPriorRealParam extends Distribution {
     
     RealParameter rateShifts;
     
+    // growth rate between every pair of neighbouring Ne's and log density of the difference between
+    // every pair of neighbouring growth rates, such that a proposal only updates the terms next to it
+    double[] growthRates, terms;
+    double[] storedGrowthRates, storedTerms;
+    double growthSum, termSum;
+    double storedGrowthSum, storedTermSum;
+    boolean needsFullUpdate = true;
+    // the sums are recomputed from the terms every so often, such that rounding errors do not accumulate
+    static final int RESYNC_INTERVAL = 1000;
+    int updatesSinceResync = 0;
+    
     @Override
     public void initAndValidate() {
     	NeLog = NeLogInput.get();    	
@@ -83,26 +94,13 @@ public class GrowthRateSmoothingPriorRealParam extends Distribution {
 	}
 	
     public double calculateLogP() {
-        logP = 0;
-        
-        double[] growthRates = new double[NeLog.getDimension()-1];
-               
+        if (needsFullUpdate || growthRates == null || growthRates.length != NeLog.getDimension()-1
+        		|| rateShifts.somethingIsDirty() || dist.isDirtyCalculation())
+        	updateAll();
+        else if (NeLog.somethingIsDirty())
+        	updateDirty();
         
-        //loop over all time points
-    	for (int j = 1; j < NeLog.getDimension(); j++){
-    		double timediff = rateShifts.getArrayValue(j-1);
-    		if (j>1)
-    			timediff -= rateShifts.getArrayValue(j-2);
-    		
-    		double logdiff = NeLog.getArrayValue(j) - NeLog.getArrayValue(j-1); 
-    		growthRates[j-1] = logdiff/timediff;    		
-    	}
-    	
-    	
-    	for (int j = 1; j < growthRates.length; j++){
-    		double diff = growthRates[j]-growthRates[j-1];
-        	logP += dist.logDensity(diff);
-    	}
+        logP = termSum;
         
         // add contribution from first or last entry
         if (initDistrInput.get()!=null)
@@ -112,14 +110,97 @@ public class GrowthRateSmoothingPriorRealParam extends Distribution {
         }
         
         if (meanDistrInput.get()!=null) {
-        	double mean=0.0;
-        	for (int j = 0; j < growthRates.length; j++){
-        		mean += growthRates[j];    		
-        	}
-        	mean /= growthRates.length;
+        	double mean = growthSum / growthRates.length;
     		logP += meanDistr.logDensity(mean);
         }
         
         return logP;
     }
+    
+    private void updateAll() {
+    	final int n = NeLog.getDimension()-1;
+    	if (growthRates == null || growthRates.length != n) {
+    		growthRates = new double[n];
+    		terms = new double[n];
+    		storedGrowthRates = new double[n];
+    		storedTerms = new double[n];
+    	}
+    	for (int j = 0; j < n; j++)
+    		growthRates[j] = getGrowthRate(j);
+    	for (int j = 1; j < n; j++)
+    		terms[j] = dist.logDensity(growthRates[j]-growthRates[j-1]);
+    	resync();
+    	needsFullUpdate = false;
+    }
+    
+    // growth rate j depends on Ne j and j+1, term j on growth rates j-1 and j
+    private void updateDirty() {
+    	final int n = growthRates.length;
+    	boolean flagged = false;
+    	for (int i = 0; i <= n; i++) {
+    		if (NeLog.isDirty(i)) {
+    			flagged = true;
+    			for (int j = Math.max(i-1, 0); j <= Math.min(i, n-1); j++) {
+    				double growthRate = getGrowthRate(j);
+    				growthSum += growthRate - growthRates[j];
+    				growthRates[j] = growthRate;
+    			}
+    		}
+    	}
+    	// changed as a whole, e.g. by scaling all elements, without flagging single elements
+    	if (!flagged) {
+    		updateAll();
+    		return;
+    	}
+    	int last = 0;
+    	for (int i = 0; i <= n; i++) {
+    		if (NeLog.isDirty(i)) {
+    			for (int j = Math.max(Math.max(i-1, 1), last+1); j <= Math.min(i+1, n-1); j++) {
+    				double term = dist.logDensity(growthRates[j]-growthRates[j-1]);
+    				termSum += term - terms[j];
+    				terms[j] = term;
+    				last = j;
+    			}
+    		}
+    	}
+    	if (++updatesSinceResync >= RESYNC_INTERVAL)
+    		resync();
+    }
+    
+    private void resync() {
+    	growthSum = 0.0;
+    	termSum = 0.0;
+    	for (int j = 0; j < growthRates.length; j++)
+    		growthSum += growthRates[j];
+    	for (int j = 1; j < terms.length; j++)
+    		termSum += terms[j];
+    	updatesSinceResync = 0;
+    }
+    
+    private double getGrowthRate(int j) {
+		double timediff = rateShifts.getArrayValue(j);
+		if (j>0)
+			timediff -= rateShifts.getArrayValue(j-1);
+		return (NeLog.getArrayValue(j+1) - NeLog.getArrayValue(j))/timediff;
+    }
+    
+    @Override
+    public void store() {
+    	if (growthRates != null) {
+	    	System.arraycopy(growthRates, 0, storedGrowthRates, 0, growthRates.length);
+	    	System.arraycopy(terms, 0, storedTerms, 0, terms.length);
+    	}
+    	storedGrowthSum = growthSum;
+    	storedTermSum = termSum;
+    	super.store();
+    }
+    
+    @Override
+    public void restore() {
+    	double[] tmp = growthRates; growthRates = storedGrowthRates; storedGrowthRates = tmp;
+    	tmp = terms; terms = storedTerms; storedTerms = tmp;
+    	growthSum = storedGrowthSum;
+    	termSum = storedTermSum;
+    	super.restore();
+    }
 }
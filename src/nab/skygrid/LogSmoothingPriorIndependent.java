@@ -47,6 +47,18 @@ public class LogSmoothingPriorIndependent extends Distribution {
     protected ParametricDistribution finalDistr;
     
     private List<Integer> jumpIntervals;
+    // distribution of the difference between Ne j-1 and j, looked up once from the jump intervals
+    private ParametricDistribution[] termDistr;
+    
+    // log density of every difference, such that a proposal only updates the terms next to it
+    double[] terms, storedTerms;
+    double termSum, storedTermSum;
+    boolean needsFullUpdate = true;
+    // the jump table was rebuilt since the last store, and has to be rebuilt again on restore
+    boolean jumpsChanged = false;
+    // the sum is recomputed from the terms every so often, such that rounding errors do not accumulate
+    static final int RESYNC_INTERVAL = 1000;
+    int updatesSinceResync = 0;
     
     @Override
     public void initAndValidate() {
@@ -58,11 +70,20 @@ public class LogSmoothingPriorIndependent extends Distribution {
         if (finalDistrInput.get()!=null)
         	finalDistr = finalDistrInput.get();
 
+        updateJumpIntervals();
+    }
+    
+    private void updateJumpIntervals() {
         jumpIntervals = new ArrayList<>();
         for (int i = 0; i < jumpsInput.get().getDimension(); i++) {
         	jumpIntervals.add((int) jumpsInput.get().getArrayValue(i));
         }
-        
+        termDistr = new ParametricDistribution[NeLog.getDimension()];
+        for (int j = 1; j < termDistr.length; j++) {
+        	int index = jumpIntervals.indexOf(j);
+        	termDistr[j] = index >= 0 ? jumpDistrInput.get().get(index) : dist;
+        }
+        jumpsChanged = true;
     }
 
 
@@ -85,18 +106,16 @@ public class LogSmoothingPriorIndependent extends Distribution {
 	}
 	
     public double calculateLogP() {
-    	logP = 0;
-               
-        
-        //loop over all time points
-    	for (int j = 1; j < NeLog.getDimension(); j++){
-    		double diff = NeLog.getArrayValue(j) - NeLog.getArrayValue(j-1);    	
-    		if (jumpIntervals.contains(j)) {
-    			logP += jumpDistrInput.get().get(jumpIntervals.indexOf(j)).logDensity(diff);
-    		}else {
-    			logP += dist.logDensity(diff);
-    		}
+    	if (jumpsInput.get().somethingIsDirty() || termDistr.length != NeLog.getDimension()) {
+    		updateJumpIntervals();
+    		needsFullUpdate = true;
     	}
+    	if (needsFullUpdate || terms == null || terms.length != NeLog.getDimension() || distributionsAreDirty())
+    		updateAll();
+    	else if (NeLog.somethingIsDirty())
+    		updateDirty();
+    	
+    	logP = termSum;
         
         // add contribution from first or last entry
         if (initDistrInput.get()!=null)
@@ -106,4 +125,82 @@ public class LogSmoothingPriorIndependent extends Distribution {
         }       
         return logP;
     }
+    
+    private boolean distributionsAreDirty() {
+    	if (dist.isDirtyCalculation())
+    		return true;
+    	for (ParametricDistribution d : jumpDistrInput.get())
+    		if (d.isDirtyCalculation())
+    			return true;
+    	return false;
+    }
+    
+    private void updateAll() {
+    	final int n = NeLog.getDimension();
+    	if (terms == null || terms.length != n) {
+    		terms = new double[n];
+    		storedTerms = new double[n];
+    	}
+    	for (int j = 1; j < n; j++)
+    		terms[j] = getTerm(j);
+    	resync();
+    	needsFullUpdate = false;
+    }
+    
+    // term j depends on Ne j-1 and j
+    private void updateDirty() {
+    	final int n = NeLog.getDimension();
+    	int last = 0;
+    	boolean flagged = false;
+    	for (int i = 0; i < n; i++) {
+    		if (NeLog.isDirty(i)) {
+    			flagged = true;
+    			for (int j = Math.max(i, last+1); j <= Math.min(i+1, n-1); j++) {
+    				double term = getTerm(j);
+    				termSum += term - terms[j];
+    				terms[j] = term;
+    				last = j;
+    			}
+    		}
+    	}
+    	// changed as a whole, e.g. by scaling all elements, without flagging single elements
+    	if (!flagged) {
+    		updateAll();
+    		return;
+    	}
+    	if (++updatesSinceResync >= RESYNC_INTERVAL)
+    		resync();
+    }
+    
+    private double getTerm(int j) {
+    	return termDistr[j].logDensity(NeLog.getArrayValue(j) - NeLog.getArrayValue(j-1));
+    }
+    
+    private void resync() {
+    	termSum = 0.0;
+    	for (int j = 1; j < terms.length; j++)
+    		termSum += terms[j];
+    	updatesSinceResync = 0;
+    }
+    
+    @Override
+    public void store() {
+    	if (terms != null)
+    		System.arraycopy(terms, 0, storedTerms, 0, terms.length);
+    	storedTermSum = termSum;
+    	jumpsChanged = false;
+    	super.store();
+    }
+    
+    @Override
+    public void restore() {
+    	double[] tmp = terms; terms = storedTerms; storedTerms = tmp;
+    	termSum = storedTermSum;
+    	// the jumps are already restored
+    	if (jumpsChanged) {
+    		updateJumpIntervals();
+    		jumpsChanged = false;
+    	}
+    	super.restore();
+    }
 }
@@ -40,6 +40,25 @@ public class LogSmoothingPriorWithMultiplier extends Distribution {
     protected ParametricDistribution initDistr;
     protected ParametricDistribution finalDistr;
     
+    // the Ne's of every term are read at the comparison times, OFFSET before the rate shift of the skygrid
+    static final double OFFSET = 0.0001;
+    
+    // epochs of the skygrid and the multiplier at the old and new comparison time of every rate shift
+    // of the skygrid, only looked up again when the rate shifts change
+    int[] skygridBefore, skygridAfter, multBefore, multAfter;
+    // true if the skygrid epochs of term j are j-1 or j, such that a change to logNe i only
+    // affects the terms i and i+1
+    boolean regular;
+    boolean needsAlignment = true;
+    boolean alignedSinceStore = false;
+    
+    double[] terms, storedTerms;
+    double termSum, storedTermSum;
+    boolean needsFullUpdate = true;
+    // the sum is recomputed from the terms every so often, such that rounding errors do not accumulate
+    static final int RESYNC_INTERVAL = 1000;
+    int updatesSinceResync = 0;
+    
     @Override
     public void initAndValidate() {
     	skygrid = skygridInput.get();    	
@@ -72,19 +91,17 @@ public class LogSmoothingPriorWithMultiplier extends Distribution {
 	}
 	
     public double calculateLogP() {
-        logP = 0;
-        double offset=0.0001;
-        //loop over all time points
-    	for (int j = 1; j < skygrid.rateShifts.getDimension(); j++){
-    		double old_time = skygrid.rateShifts.getArrayValue(j-1)-offset;
-			double new_time = skygrid.rateShifts.getArrayValue(j-1)-offset;
-			
-			double Ne_old = skygrid.getPopSize(old_time) + mult.getRate(old_time);
-			double Ne_new = skygrid.getPopSize(new_time) + mult.getRate(new_time);
-			
-    		double diff = Ne_new-Ne_old;    		
-    		logP += dist.logDensity(diff);
+    	if (needsAlignment || terms == null || terms.length != skygrid.grid.getDimension()
+    			|| skygrid.rateShifts.somethingIsDirty() || mult.rateShifts.somethingIsDirty()) {
+    		align();
+    		needsFullUpdate = true;
     	}
+    	if (needsFullUpdate || !regular || mult.isDirtyCalculation() || dist.isDirtyCalculation())
+    		updateAll();
+    	else if (skygrid.logNe.somethingIsDirty())
+    		updateDirty();
+    	
+    	logP = termSum;
         
         // add contribution from first or last entry
         if (initDistrInput.get()!=null) {
@@ -94,4 +111,108 @@ public class LogSmoothingPriorWithMultiplier extends Distribution {
         
         return logP;
     }
+    
+    private void align() {
+    	final int n = skygrid.grid.getDimension();
+    	if (terms == null || terms.length != n) {
+    		terms = new double[n];
+    		storedTerms = new double[n];
+    		skygridBefore = new int[n];
+    		skygridAfter = new int[n];
+    		multBefore = new int[n];
+    		multAfter = new int[n];
+    	}
+    	needsAlignment = false;
+    	alignedSinceStore = true;
+    	regular = true;
+    	for (int j = 1; j < n; j++) {
+    		double old_time = skygrid.grid.getTime(j-1)-OFFSET;
+    		double new_time = skygrid.grid.getTime(j-1)-OFFSET;
+    		skygridBefore[j] = skygrid.grid.getEpoch(old_time);
+    		skygridAfter[j] = skygrid.grid.getEpoch(new_time);
+    		multBefore[j] = mult.grid.getEpoch(old_time);
+    		multAfter[j] = mult.grid.getEpoch(new_time);
+    		if (skygridBefore[j] < j-1 || skygridBefore[j] > j || skygridAfter[j] < j-1 || skygridAfter[j] > j)
+    			regular = false;
+    	}
+    }
+    
+    private void updateAll() {
+    	for (int j = 1; j < terms.length; j++)
+    		terms[j] = getTerm(j);
+    	resync();
+    	needsFullUpdate = false;
+    }
+    
+    // term j depends on logNe j-1 and j
+    private void updateDirty() {
+    	final int n = terms.length;
+    	int last = 0;
+    	boolean flagged = false;
+    	for (int i = 0; i < n; i++) {
+    		if (skygrid.logNe.isDirty(i)) {
+    			flagged = true;
+    			for (int j = Math.max(i, last+1); j <= Math.min(i+1, n-1); j++) {
+    				double term = getTerm(j);
+    				termSum += term - terms[j];
+    				terms[j] = term;
+    				last = j;
+    			}
+    		}
+    	}
+    	// changed as a whole, e.g. by scaling all elements, without flagging single elements
+    	if (!flagged) {
+    		updateAll();
+    		return;
+    	}
+    	if (++updatesSinceResync >= RESYNC_INTERVAL)
+    		resync();
+    }
+    
+    private double getTerm(int j) {
+		double Ne_old = getPopSize(skygridBefore[j]) + getRate(multBefore[j]);
+		double Ne_new = getPopSize(skygridAfter[j]) + getRate(multAfter[j]);
+		
+		double diff = Ne_new-Ne_old;    		
+		return dist.logDensity(diff);
+    }
+    
+    // same as skygrid.getPopSize and mult.getRate for a time in epoch i
+    private double getPopSize(int i) {
+    	if (i >= skygrid.grid.getDimension())
+    		return Double.POSITIVE_INFINITY;
+    	return Math.exp(skygrid.logNe.getArrayValue(i));
+    }
+    
+    private double getRate(int i) {
+    	if (i >= mult.grid.getDimension())
+    		return Double.POSITIVE_INFINITY;
+    	return mult.logStandardCases.getArrayValue(i);
+    }
+    
+    private void resync() {
+    	termSum = 0.0;
+    	for (int j = 1; j < terms.length; j++)
+    		termSum += terms[j];
+    	updatesSinceResync = 0;
+    }
+    
+    @Override
+    public void store() {
+    	if (terms != null)
+    		System.arraycopy(terms, 0, storedTerms, 0, terms.length);
+    	storedTermSum = termSum;
+    	alignedSinceStore = false;
+    	super.store();
+    }
+    
+    @Override
+    public void restore() {
+    	double[] tmp = terms; terms = storedTerms; storedTerms = tmp;
+    	termSum = storedTermSum;
+    	// the restored rate shifts may not match the alignment anymore
+    	if (alignedSinceStore)
+    		needsAlignment = true;
+    	super.restore();
+    }
 }
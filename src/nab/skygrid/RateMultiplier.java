@@ -14,7 +14,7 @@ import beast.core.parameter.RealParameter;
  * @author Nicola F. Mueller
  */
 @Description("Rate with time vector.")
-public class RateMultiplier extends CalculationNode {
+public class RateMultiplier extends CalculationNode implements DirtyTimeWindow {
 	
     final public Input<RealParameter> casesInput = new Input<>("cases",
             "Number of cases from outside", Input.Validate.REQUIRED);
@@ -26,14 +26,20 @@ public class RateMultiplier extends CalculationNode {
 
     RealParameter logStandardCases;
     RealParameter rateShifts;
-    
+    TimeGrid grid;
+
+    // time window over which the values changed in the current proposal
+    double dirtyStart = Double.NEGATIVE_INFINITY;
+    double dirtyEnd = Double.POSITIVE_INFINITY;
+
 
     @Override
 	public void initAndValidate() {
     	logStandardCases = casesInput.get();
 
     	rateShifts = rateShiftsInput.get();
-    	if (logStandardCases.getDimension()!=rateShifts.getDimension())
+    	grid = new TimeGrid(rateShifts);
+    	if (logStandardCases.getDimension()!=grid.getDimension())
     		throw new IllegalArgumentException("cases and rate shifts have different dimension");
     	// log everything
     	for (int i = 0; i < logStandardCases.getDimension(); i++)
@@ -60,28 +66,42 @@ public class RateMultiplier extends CalculationNode {
 
     }
 
-	public double getRate(double t) {				
-		int intervalnr = getIntervalNr(t);
-		if (intervalnr>=rateShifts.getDimension()) {
+	public double getRate(double t) {
+		return getRate(t, new EpochCursor());
+	}
+
+	/**
+	 * same as getRate(t), looking up the epoch of t with the cursor
+	 */
+	public double getRate(double t, EpochCursor cursor) {
+		int intervalnr = grid.seek(t, cursor);
+		if (intervalnr>=grid.getDimension()) {
 			return Double.POSITIVE_INFINITY;
 		}		
 		return logStandardCases.getArrayValue(intervalnr);
 	}
 	
 	public double getMeanRate(double start, double finish) {
+		return getMeanRate(start, finish, new EpochCursor());
+	}
+
+	/**
+	 * same as getMeanRate(start, finish), looking up the epochs with the cursor
+	 */
+	public double getMeanRate(double start, double finish, EpochCursor cursor) {
     	if (start==finish)
     		return 0.0;
     	
     	// get the interval "start" is in
-    	int first_int = getIntervalNr(start);
+    	int first_int = grid.seek(start, cursor);
     	// get the interval "finish" is in
-    	int last_int = getIntervalNr(finish);
+    	int last_int = grid.seek(finish, cursor);
     	
     	double weighted = 0.0;
     	double curr_time = start; 
 
     	for (int i = first_int; i <= last_int;i++) {
-    		if (i>=rateShifts.getDimension()) {
+    		if (i>=grid.getDimension()) {
     			return Double.POSITIVE_INFINITY;
     		}    		
     		double next_time = Math.min(getTime(i), finish);
@@ -94,18 +114,64 @@ public class RateMultiplier extends CalculationNode {
 
 
 	
-	private int getIntervalNr(double t) {
-		// check which interval t + offset is in
-		for (int i = 0; i < rateShifts.getDimension(); i++)
-			if (t<rateShifts.getArrayValue(i))
-				return i;
-		
-		// after the last interval, just keep using the last element
-		return rateShifts.getDimension();					
-	}
 
 	private double getTime(int i) {
-		return rateShifts.getArrayValue(i);
+		return grid.getTime(i);
+	}
+
+	@Override
+	protected boolean requiresRecalculation() {
+		grid.update();
+		updateDirtyWindow();
+		return super.requiresRecalculation();
+	}
+
+	@Override
+	protected void store() {
+		grid.store();
+		super.store();
+	}
+
+	@Override
+	protected void restore() {
+		grid.restore();
+		super.restore();
+	}
+
+	/**
+	 * @return the times at which the rate changes epoch, in increasing order
+	 */
+	public double[] getShiftTimes() {
+		return grid.getTimes();
+	}
+
+	@Override
+	public double getDirtyStart() {
+		return dirtyStart;
+	}
+
+	@Override
+	public double getDirtyEnd() {
+		return dirtyEnd;
+	}
+
+	// finds the time window affected by the elements that changed in this proposal
+	private void updateDirtyWindow() {
+		dirtyStart = Double.POSITIVE_INFINITY;
+		dirtyEnd = Double.NEGATIVE_INFINITY;
+		if (!rateShifts.somethingIsDirty()) {
+			for (int i = 0; i < logStandardCases.getDimension(); i++) {
+				if (logStandardCases.isDirty(i)) {
+					dirtyStart = Math.min(dirtyStart, DirtyTimeWindow.getEpochStart(rateShifts, i));
+					dirtyEnd = Math.max(dirtyEnd, DirtyTimeWindow.getEpochEnd(rateShifts, i));
+				}
+			}
+		}
+		// the change cannot be attributed to single elements, so everything is dirty
+		if (dirtyStart > dirtyEnd) {
+			dirtyStart = Double.NEGATIVE_INFINITY;
+			dirtyEnd = Double.POSITIVE_INFINITY;
+		}
 	}
 
 }
\ No newline at end of file
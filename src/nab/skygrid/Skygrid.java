@@ -15,7 +15,7 @@ import beast.evolution.tree.coalescent.PopulationFunction;
  * @author Nicola F. Mueller
  */
 @Description("Skygrid style population prior that .")
-public class Skygrid extends PopulationFunction.Abstract {
+public class Skygrid extends PopulationFunction.Abstract implements SweepablePopulationFunction, DirtyTimeWindow {
 	
     final public Input<RealParameter> logNeInput = new Input<>("logNe",
             "Nes over time in log space", Input.Validate.REQUIRED);
@@ -27,13 +27,27 @@ public class Skygrid extends PopulationFunction.Abstract {
     //
     RealParameter logNe;
     RealParameter rateShifts;
-    
+    TimeGrid grid;
+
+    // 1/Ne of every epoch and the integral over 1/Ne from time 0 to the start of every epoch,
+    // such that integrals over 1/Ne are differences of two table entries
+    double[] inverseNe;
+    double[] cumulative;
+    double[] storedInverseNe;
+    double[] storedCumulative;
+
+    // time window over which the values changed in the current proposal
+    double dirtyStart = Double.NEGATIVE_INFINITY;
+    double dirtyEnd = Double.POSITIVE_INFINITY;
+
 
     @Override
 	public void initAndValidate() {
     	logNe = logNeInput.get();
     	rateShifts = rateShiftsInput.get();
+    	grid = new TimeGrid(rateShifts);
     	logNe.setDimension(rateShifts.getDimension());    	
+    	updateTables(0);
     }
 
 
@@ -44,10 +58,15 @@ public class Skygrid extends PopulationFunction.Abstract {
 
 
 	@Override
-	public double getPopSize(double t) {				
+	public double getPopSize(double t) {
+		return getPopSize(t, new EpochCursor());
+	}
+
+	@Override
+	public double getPopSize(double t, EpochCursor cursor) {
 //		return logNe.getArrayValue(getIntervalNr(t));
-		int intervalnr = getIntervalNr(t);
-		if (intervalnr>=rateShifts.getDimension()) {
+		int intervalnr = grid.seek(t, cursor);
+		if (intervalnr>=grid.getDimension()) {
 //			System.err.println("index out of range, return neg inf");
 			return Double.POSITIVE_INFINITY;
 		}
@@ -59,58 +78,163 @@ public class Skygrid extends PopulationFunction.Abstract {
 	
     @Override
 	public double getIntegral(double start, double finish) {
+		return getIntegral(start, finish, new EpochCursor());
+	}
+
+    @Override
+	public double getIntegral(double start, double finish, EpochCursor cursor) {
     	if (start==finish)
     		return 0.0;
     	
     	// get the interval "start" is in
-    	int first_int = getIntervalNr(start);
+    	int first_int = grid.seek(start, cursor);
     	// get the interval "finish" is in
-    	int last_int = getIntervalNr(finish);
-    	
-    	double weighted = 0.0;
-    	double curr_time = start; 
+    	int last_int = grid.seek(finish, cursor);
     	
-//    	System.out.println(first_int + " " + last_int + " " + finish + " " + start);
-
-    	for (int i = first_int; i <= last_int;i++) {
-    		if (i>=rateShifts.getDimension()) {
-//    			System.err.println("index out of range, return neg inf");
-    			return Double.POSITIVE_INFINITY;
-    		}
-    		
-    		double next_time = Math.min(getTime(i), finish);
-    		weighted +=  (next_time - curr_time)/ Math.exp(logNe.getArrayValue(i));
-    		curr_time = next_time;
-    	}
-    	return weighted;
+    	if (last_int>=grid.getDimension())
+    		return Double.POSITIVE_INFINITY;
+    	// within one epoch, avoid the difference of two large cumulative values
+    	if (first_int==last_int)
+    		return (finish - start) * inverseNe[first_int];
+    	return getIntensity(finish, last_int) - getIntensity(start, first_int);
     }
 
 
 
 	@Override
 	public double getInverseIntensity(double x) {
-		throw new IllegalArgumentException("Not implemented");
-	}
-	
-	private int getIntervalNr(double t) {
-		// check which interval t + offset is in
-		for (int i = 0; i < rateShifts.getDimension(); i++)
-			if (t<rateShifts.getArrayValue(i))
-				return i;
+		final int dim = grid.getDimension();
+		// the intensity jumps to infinity at the last rate shift
+		if (x >= cumulative[dim])
+			return getTime(dim-1);
 		
-		// after the last interval, just keep using the last element
-		return rateShifts.getDimension();					
+		// find the last epoch that starts at an intensity below x
+		int lower = 0, upper = dim-1;
+		while (lower < upper) {
+			int mid = (lower + upper + 1) >>> 1;
+			if (cumulative[mid] <= x)
+				lower = mid;
+			else
+				upper = mid - 1;
+		}
+		return getEpochStart(lower) + (x - cumulative[lower]) / inverseNe[lower];
 	}
+	
 
 	private double getTime(int i) {
-		return rateShifts.getArrayValue(i);
+		return grid.getTime(i);
 	}
 
+	// epoch 0 is integrated from time 0 on
+	private double getEpochStart(int i) {
+		return i == 0 ? 0.0 : grid.getTime(i-1);
+	}
 
 
 	@Override
 	public double getIntensity(double t) {
-		throw new IllegalArgumentException("Not implemented");
+		int i = grid.getEpoch(t);
+		if (i >= grid.getDimension())
+			return Double.POSITIVE_INFINITY;
+		return getIntensity(t, i);
+	}
+
+	private double getIntensity(double t, int i) {
+		return cumulative[i] + (t - getEpochStart(i)) * inverseNe[i];
+	}
+
+	/**
+	 * recomputes 1/Ne and the cumulative integrals from epoch from on, all epochs
+	 * before it are unchanged
+	 */
+	private void updateTables(int from) {
+		final int dim = grid.getDimension();
+		if (inverseNe == null || inverseNe.length != dim) {
+			inverseNe = new double[dim];
+			cumulative = new double[dim+1];
+			storedInverseNe = new double[dim];
+			storedCumulative = new double[dim+1];
+			from = 0;
+		}
+		for (int i = from; i < dim; i++) {
+			inverseNe[i] = Math.exp(-logNe.getArrayValue(i));
+			cumulative[i+1] = cumulative[i] + (getTime(i) - getEpochStart(i)) * inverseNe[i];
+		}
+	}
+
+	// first epoch whose Ne or start changed in this proposal
+	private int getFirstDirtyEpoch() {
+		if (rateShifts.somethingIsDirty())
+			return 0;
+		for (int i = 0; i < logNe.getDimension(); i++)
+			if (logNe.isDirty(i))
+				return i;
+		// changed as a whole, e.g. by scaling all elements, without flagging single elements
+		if (logNe.somethingIsDirty())
+			return 0;
+		return logNe.getDimension();
+	}
+
+	@Override
+	protected boolean requiresRecalculation() {
+		grid.update();
+		updateDirtyWindow();
+		updateTables(getFirstDirtyEpoch());
+		return super.requiresRecalculation();
+	}
+
+	@Override
+	protected void store() {
+		grid.store();
+		System.arraycopy(inverseNe, 0, storedInverseNe, 0, inverseNe.length);
+		System.arraycopy(cumulative, 0, storedCumulative, 0, cumulative.length);
+		super.store();
+	}
+
+	@Override
+	protected void restore() {
+		grid.restore();
+		double[] tmp = inverseNe;
+		inverseNe = storedInverseNe;
+		storedInverseNe = tmp;
+		tmp = cumulative;
+		cumulative = storedCumulative;
+		storedCumulative = tmp;
+		super.restore();
+	}
+
+	@Override
+	public double[] getShiftTimes() {
+		return grid.getTimes();
+	}
+
+	@Override
+	public double getDirtyStart() {
+		return dirtyStart;
+	}
+
+	@Override
+	public double getDirtyEnd() {
+		return dirtyEnd;
+	}
+
+	// finds the time window affected by the elements that changed in this proposal
+	private void updateDirtyWindow() {
+		dirtyStart = Double.POSITIVE_INFINITY;
+		dirtyEnd = Double.NEGATIVE_INFINITY;
+		if (!rateShifts.somethingIsDirty()) {
+			for (int i = 0; i < logNe.getDimension(); i++) {
+				if (logNe.isDirty(i)) {
+					dirtyStart = Math.min(dirtyStart, DirtyTimeWindow.getEpochStart(rateShifts, i));
+					dirtyEnd = Math.max(dirtyEnd, DirtyTimeWindow.getEpochEnd(rateShifts, i));
+				}
+			}
+		}
+		// the change cannot be attributed to single elements, so everything is dirty
+		if (dirtyStart > dirtyEnd) {
+			dirtyStart = Double.NEGATIVE_INFINITY;
+			dirtyEnd = Double.POSITIVE_INFINITY;
+		}
 	}
 
 }
\ No newline at end of file
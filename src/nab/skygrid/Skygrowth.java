@@ -12,7 +12,7 @@ import beast.evolution.tree.coalescent.PopulationFunction;
  * @author Nicola F. Mueller
  */
 @Description("Populaiton function with values at certain time points that are interpolated in between. Parameter has to be in log space")
-public class Skygrowth extends PopulationFunction.Abstract {
+public class Skygrowth extends PopulationFunction.Abstract implements SweepablePopulationFunction, DirtyTimeWindow {
 	
     final public Input<RealParameter> NeInput = new Input<>("logNe",
             "Nes over time in log space", Input.Validate.REQUIRED);
@@ -24,18 +24,27 @@ public class Skygrowth extends PopulationFunction.Abstract {
     //
     RealParameter Ne;
     RealParameter rateShifts;
+    TimeGrid grid;
     
     boolean NesKnown = false;
     double[] growth;
     double[] growth_stored;
+    // 1/Ne at the start of every epoch, the integral over 1/Ne of every epoch but the last
+    // and the integral over 1/Ne from time 0 to the start of every epoch
+    double[] inverseNe, segment, cumulative;
+    double[] storedInverseNe, storedSegment, storedCumulative;
+
+    // time window over which the values changed in the current proposal
+    double dirtyStart = Double.NEGATIVE_INFINITY;
+    double dirtyEnd = Double.POSITIVE_INFINITY;
 
 
     @Override
 	public void initAndValidate() {
     	Ne = NeInput.get();    	    	
     	rateShifts = rateShiftsInput.get();
+    	grid = new TimeGrid(rateShifts);
     	Ne.setDimension(rateShifts.getDimension()+1);
-    	growth = new double[rateShifts.getDimension()];
     	recalculateNe();
     }
 
@@ -47,7 +56,12 @@ public class Skygrowth extends PopulationFunction.Abstract {
 
 
 	@Override
-	public double getPopSize(double t) {	
+	public double getPopSize(double t) {
+		return getPopSize(t, new EpochCursor());
+	}
+
+	@Override
+	public double getPopSize(double t, EpochCursor cursor) {
 //		if (!NesKnown)
 //			recalculateNe();
 		
@@ -55,13 +69,13 @@ public class Skygrowth extends PopulationFunction.Abstract {
 //			System.out.println(Ne.getArrayValue(intervalnr)-growth[intervalnr]*timediff);
 
 
-		int intervalnr = getIntervalNr(t);
-		if (intervalnr>rateShifts.getDimension()) {
+		int intervalnr = grid.seek(t, cursor);
+		if (intervalnr>grid.getDimension()) {
 			return Math.exp(Ne.getArrayValue(intervalnr-1));
 		}
 		double timediff = t;
 		if (intervalnr>0)
-			timediff -= rateShifts.getArrayValue(intervalnr-1);
+			timediff -= grid.getTime(intervalnr-1);
 		
 				
 		return Math.exp(Ne.getArrayValue(intervalnr)-growth[intervalnr]*timediff);
@@ -70,138 +84,201 @@ public class Skygrowth extends PopulationFunction.Abstract {
 	
     @Override
 	public double getIntegral(double start, double finish) {
+		return getIntegral(start, finish, new EpochCursor());
+	}
+
+    @Override
+	public double getIntegral(double start, double finish, EpochCursor cursor) {
     	if (start==finish)
     		return 0.0;
     	
     	// get the interval "start" is in
-    	int first_int = getIntervalNr(start);
+    	int first_int = grid.seek(start, cursor);
     	// get the interval "finish" is in
-    	int last_int = getIntervalNr(finish);
-    	
-    	double weighted = 0.0;
-    	double curr_time = start; 
-
+    	int last_int = grid.seek(finish, cursor);
     	
-    	for (int i = first_int; i <= last_int;i++) {
-    		if (i>rateShifts.getDimension()) {
-    			throw new IllegalArgumentException("rate shifts out of bounds");
-    		}
-    		
-    		double next_time = Math.min(getTime(i), finish);
-    		double r = growth[i];  
-    		
-    		double timediff1 = curr_time;
-    		double timediff2 = next_time;
-    		if (i>0) {
-    			timediff1 -= rateShifts.getArrayValue(i-1);
-    			timediff2 -= rateShifts.getArrayValue(i-1);
-    		}
-    		
-
-    		if (r==0.0) {
-        		weighted += (next_time-curr_time)/Math.exp(Ne.getArrayValue(i));
-    		}else {
-        		weighted += (Math.exp(timediff2*r) - Math.exp(timediff1*r)) / Math.exp(Ne.getArrayValue(i))/r;
-    		}
-    				
-    		curr_time = next_time;
+    	// within one epoch, avoid the difference of two large cumulative values
+    	if (first_int==last_int) {
+    		double epochStart = getEpochStart(first_int);
+    		return getSegmentIntegral(first_int, start - epochStart, finish - epochStart);
     	}
-    	return weighted;
+    	return getIntensity(finish, last_int) - getIntensity(start, first_int);
     }
     
 	@Override
 	public double getIntensity(double t) {
-		return getIntegral(0,t);
+		return getIntensity(t, grid.getEpoch(t));
+	}
+
+	private double getIntensity(double t, int i) {
+		return cumulative[i] + getSegmentIntegral(i, 0.0, t - getEpochStart(i));
+	}
+
+	// integral over 1/Ne in epoch i between the times timediff1 and timediff2 after the start of the epoch
+	private double getSegmentIntegral(int i, double timediff1, double timediff2) {
+		double r = growth[i];
+		if (r==0.0)
+			return (timediff2 - timediff1) * inverseNe[i];
+		return inverseNe[i] * Math.exp(timediff1*r) * Math.expm1((timediff2 - timediff1)*r) / r;
 	}
 
 
 	@Override
 	public double getInverseIntensity(double x) {
-		int i=0;
-		double curr_time = 0;
-		double integral = 0;
-		do {
-    		double next_time = getTime(i);
-    		double r = growth[i]; 
-    		
-    		double timediff1 = curr_time;
-    		double timediff2 = next_time;
-    		if (i>0) {
-    			timediff1 -= rateShifts.getArrayValue(i-1);
-    			timediff2 -= rateShifts.getArrayValue(i-1);
-    		}
-
-    		double old_diff = x-integral;
-    		
-    		if (r==0.0) {
-    			integral += (next_time-curr_time)/Math.exp(Ne.getArrayValue(i));
-    		}else {
-    			integral += (Math.exp(timediff2*r) - Math.exp(timediff1*r)) / Math.exp(Ne.getArrayValue(i))/r;
-    		}
-    		
-    		double diff = x-integral;
-    		
-    		if (diff<0 || i==rateShifts.getDimension()) {
-    	        if (r == 0.0) {
-           			return Math.exp(Ne.getArrayValue(i)) * old_diff + curr_time;
-    	        } else {
-           			return Math.log(1.0 + Math.exp(Ne.getArrayValue(i)) * old_diff * r) / r + curr_time;
-    	        }
-    		}
-    		curr_time = next_time;
-    		i++;
-		} while (i<=rateShifts.getDimension());
+		// find the last epoch that starts at an intensity below x
+		int lower = 0, upper = grid.getDimension();
+		while (lower < upper) {
+			int mid = (lower + upper + 1) >>> 1;
+			if (cumulative[mid] <= x)
+				lower = mid;
+			else
+				upper = mid - 1;
+		}
 		
-		return Double.POSITIVE_INFINITY;
-    	
-    	
+		double diff = x - cumulative[lower];
+		double r = growth[lower];
+		if (r == 0.0)
+			return diff / inverseNe[lower] + getEpochStart(lower);
+		return Math.log1p(diff * r / inverseNe[lower]) / r + getEpochStart(lower);
 	}
 	
-	private int getIntervalNr(double t) {
-		// check which interval t + offset is in
-		for (int i = 0; i < rateShifts.getDimension(); i++)
-			if (t<rateShifts.getArrayValue(i))
-				return i;
-		
-		// after the last interval, just keep using the last element
-		return rateShifts.getDimension();					
-	}
 
-	private double getTime(int i) {
-		if (i < rateShifts.getDimension())
-			return rateShifts.getArrayValue(i);
-		else
-			return Double.POSITIVE_INFINITY;
+	private double getEpochStart(int i) {
+		return i == 0 ? 0.0 : grid.getTime(i-1);
 	}
 	
-	// computes the Ne's at the break points
+
+	// computes the growth rates and integrals of all epochs
 	private void recalculateNe() {
-		growth = new double[rateShifts.getDimension()+1];
-		double curr_time = 0.0;
-		for (int i = 1; i < Ne.getDimension(); i++) {
-			growth[i-1] = (Ne.getArrayValue(i-1)- Ne.getArrayValue(i))/(rateShifts.getArrayValue(i-1)-curr_time);
-			curr_time = rateShifts.getArrayValue(i-1);
+		final int dim = grid.getDimension();
+		if (growth == null || growth.length != dim+1) {
+			growth = new double[dim+1];
+			inverseNe = new double[dim+1];
+			segment = new double[dim];
+			cumulative = new double[dim+1];
+			growth_stored = new double[dim+1];
+			storedInverseNe = new double[dim+1];
+			storedSegment = new double[dim];
+			storedCumulative = new double[dim+1];
 		}
+		for (int i = 0; i <= dim; i++)
+			updateEpoch(i);
+		updateCumulative(0);
 	
 		NesKnown = true;
 	}
 
+	// only the epochs next to the elements of Ne that changed have to be updated
+	private void updateDirtyEpochs() {
+		final int dim = grid.getDimension();
+		int first = -1;
+		int last = -1;
+		for (int i = 0; i <= dim; i++) {
+			if (Ne.isDirty(i)) {
+				// epoch i-1 ends at Ne[i], which may already have been updated
+				if (i > 0 && last != i-1)
+					updateEpoch(i-1);
+				updateEpoch(i);
+				last = i;
+				if (first < 0)
+					first = Math.max(i-1, 0);
+			}
+		}
+		if (first >= 0)
+			updateCumulative(first);
+		else if (Ne.somethingIsDirty())
+			// changed as a whole, e.g. by scaling all elements, without flagging single elements
+			recalculateNe();
+	}
+
+	// growth rate, 1/Ne at the start and integral over 1/Ne of epoch i
+	private void updateEpoch(int i) {
+		final int dim = grid.getDimension();
+		inverseNe[i] = Math.exp(-Ne.getArrayValue(i));
+		if (i < dim) {
+			double length = grid.getTime(i) - getEpochStart(i);
+			growth[i] = (Ne.getArrayValue(i)- Ne.getArrayValue(i+1))/length;
+			segment[i] = getSegmentIntegral(i, 0.0, length);
+		} else {
+			growth[i] = 0.0;
+		}
+	}
+
+	// the integrals up to the epochs after from are sums of segment integrals, which do not have to be recomputed
+	private void updateCumulative(int from) {
+		for (int i = from; i < segment.length; i++)
+			cumulative[i+1] = cumulative[i] + segment[i];
+	}
+
 	@Override
 	public boolean requiresRecalculation() {
-		recalculateNe();
+		if (grid.update() || Ne.getDimension() != growth.length)
+			recalculateNe();
+		else
+			updateDirtyEpochs();
+		updateDirtyWindow();
 		return true;
 	}
 	
+	@Override
+	public double[] getShiftTimes() {
+		return grid.getTimes();
+	}
+
+	@Override
+	public double getDirtyStart() {
+		return dirtyStart;
+	}
+
+	@Override
+	public double getDirtyEnd() {
+		return dirtyEnd;
+	}
+
+	// finds the time window affected by the elements that changed in this proposal
+	private void updateDirtyWindow() {
+		dirtyStart = Double.POSITIVE_INFINITY;
+		dirtyEnd = Double.NEGATIVE_INFINITY;
+		if (!rateShifts.somethingIsDirty()) {
+			for (int i = 0; i < Ne.getDimension(); i++) {
+				if (Ne.isDirty(i)) {
+					dirtyStart = Math.min(dirtyStart, DirtyTimeWindow.getEpochStart(rateShifts, Math.max(i-1, 0)));
+					dirtyEnd = Math.max(dirtyEnd, DirtyTimeWindow.getEpochEnd(rateShifts, i));
+				}
+			}
+		}
+		// the change cannot be attributed to single elements, so everything is dirty
+		if (dirtyStart > dirtyEnd) {
+			dirtyStart = Double.NEGATIVE_INFINITY;
+			dirtyEnd = Double.POSITIVE_INFINITY;
+		}
+	}
+
 	@Override
 	public void store() {
-		growth_stored = new double[growth.length];
+		grid.store();
 		System.arraycopy(growth, 0, growth_stored, 0, growth.length);
+		System.arraycopy(inverseNe, 0, storedInverseNe, 0, inverseNe.length);
+		System.arraycopy(segment, 0, storedSegment, 0, segment.length);
+		System.arraycopy(cumulative, 0, storedCumulative, 0, cumulative.length);
 		super.store();
 	}
 	
 	@Override
 	public void restore() {
-		System.arraycopy(growth_stored, 0, growth, 0, growth_stored.length);
+		grid.restore();
+		double[] tmp = growth;
+		growth = growth_stored;
+		growth_stored = tmp;
+		tmp = inverseNe;
+		inverseNe = storedInverseNe;
+		storedInverseNe = tmp;
+		tmp = segment;
+		segment = storedSegment;
+		storedSegment = tmp;
+		tmp = cumulative;
+		cumulative = storedCumulative;
+		storedCumulative = tmp;
 		super.restore();
 	}
 
@@ -14,7 +14,7 @@ import beast.evolution.tree.coalescent.PopulationFunction;
  * @author Nicola F. Mueller
  */
 @Description("Populaiton function with values at certain time points that are interpolated in between. Parameter has to be in log space")
-public class SkygrowthCases extends PopulationFunction.Abstract implements Loggable {
+public class SkygrowthCases extends PopulationFunction.Abstract implements SweepablePopulationFunction, Loggable, DirtyTimeWindow {
 	
     final public Input<RealParameter> NeInput = new Input<>("logNe",
             "Nes over time in log space", Input.Validate.REQUIRED);
@@ -36,22 +36,36 @@ public class SkygrowthCases extends PopulationFunction.Abstract implements Logga
     RealParameter cases;
 
     RealParameter rateShifts;
+    TimeGrid grid;
     
     boolean NesKnown = false;
+    boolean isNe;
     double[] growth;
     double[] growth_stored;
+    // Ne at the start of every epoch, and the integrand of every epoch written as
+    // scale*exp(exponent*t) with t the time since the start of the epoch
+    double[] popSize, scale, exponent;
+    double[] storedPopSize, storedScale, storedExponent;
+    // integral of every epoch and integral from time 0 to the start of every epoch
+    double[] segment, cumulative;
+    double[] storedSegment, storedCumulative;
+
+    // time window over which the values changed in the current proposal
+    double dirtyStart = Double.NEGATIVE_INFINITY;
+    double dirtyEnd = Double.POSITIVE_INFINITY;
 
 
     @Override
 	public void initAndValidate() {
     	Ne = NeInput.get();    	    	
     	rateShifts = rateShiftsInput.get();
+    	grid = new TimeGrid(rateShifts);
     	cases = casesInput.get();
     	Ne.setDimension(rateShifts.getDimension()+1);
     	if (Ne.getDimension()!=cases.getDimension())
     		throw new IllegalArgumentException("cases expected to have dimension " +(rateShifts.getDimension()+1) + " but have dimension " + cases.getDimension());
     	
-    	growth = new double[rateShifts.getDimension()];
+    	isNe = isNeInput.get();
     	recalculateNe();
     }
 
@@ -63,24 +77,36 @@ public class SkygrowthCases extends PopulationFunction.Abstract implements Logga
 
 
 	@Override
-	public double getPopSize(double t) {	
+	public double getPopSize(double t) {
+		return getPopSize(t, new EpochCursor());
+	}
+
+	@Override
+	public double getPopSize(double t, EpochCursor cursor) {
 //		if (!NesKnown)
 //			recalculateNe();
 
-		int intervalnr = getIntervalNr(t);
-		if (intervalnr>=rateShifts.getDimension()) {
+		int intervalnr = grid.seek(t, cursor);
+		if (intervalnr>=grid.getDimension()) {
 			return Double.POSITIVE_INFINITY;
 		}
 		double timediff = t;
 		if (intervalnr>0)
-			timediff -= rateShifts.getArrayValue(intervalnr-1);
+			timediff -= grid.getTime(intervalnr-1);
 				
-		return Math.exp(Ne.getArrayValue(intervalnr)+cases.getArrayValue(intervalnr)-growth[intervalnr]*timediff);
+		if (growth[intervalnr]==0.0)
+			return popSize[intervalnr];
+		return popSize[intervalnr]*Math.exp(-growth[intervalnr]*timediff);
 	}
 
 	
     @Override
 	public double getIntegral(double start, double finish) {
+		return getIntegral(start, finish, new EpochCursor());
+	}
+
+    @Override
+	public double getIntegral(double start, double finish, EpochCursor cursor) {
 //		if (!NesKnown)
 //			recalculateNe();
 
@@ -88,151 +114,216 @@ public class SkygrowthCases extends PopulationFunction.Abstract implements Logga
     		return 0.0;
     	
     	// get the interval "start" is in
-    	int first_int = getIntervalNr(start);
+    	int first_int = grid.seek(start, cursor);
     	// get the interval "finish" is in
-    	int last_int = getIntervalNr(finish);
-    	
-    	double weighted = 0.0;
-    	double curr_time = start; 
-
+    	int last_int = grid.seek(finish, cursor);
     	
-    	for (int i = first_int; i <= last_int;i++) {
-    		if (i>=rateShifts.getDimension()) {
-    			return Double.POSITIVE_INFINITY;
-    		}
-    		
-    		double next_time = Math.min(getTime(i), finish);
-    		double r = growth[i];  
-    		
-    		double timediff1 = curr_time;
-    		double timediff2 = next_time;
-    		if (i>0) {
-    			timediff1 -= rateShifts.getArrayValue(i-1);
-    			timediff2 -= rateShifts.getArrayValue(i-1);
-    		}
-    		
-
-    		if (r==0.0) {
-        		if (isNeInput.get())
-        			weighted += (next_time-curr_time)/Math.exp(Ne.getArrayValue(i) + cases.getArrayValue(i));
-        		else
-        			weighted += (next_time-curr_time)*Math.exp(Ne.getArrayValue(i));
-    		}else {
-        		if (isNeInput.get())
-        			weighted += (Math.exp(timediff2*r) - Math.exp(timediff1*r)) / Math.exp(Ne.getArrayValue(i) + cases.getArrayValue(i))/r;
-        		else {
-        			weighted -= Math.exp(Ne.getArrayValue(i))/r * (Math.exp(-timediff2*r) - Math.exp(-timediff1*r)) ;
-        		}
-    		}
-    				
-    		curr_time = next_time;
+    	if (last_int>=grid.getDimension())
+    		return Double.POSITIVE_INFINITY;
+    	// within one epoch, avoid the difference of two large cumulative values
+    	if (first_int==last_int) {
+    		double epochStart = getEpochStart(first_int);
+    		return getSegmentIntegral(first_int, start - epochStart, finish - epochStart);
     	}
-    	return weighted;
+    	return getIntensity(finish, last_int) - getIntensity(start, first_int);
     }
 
+	// integral of epoch i between the times timediff1 and timediff2 after the start of the epoch
+	private double getSegmentIntegral(int i, double timediff1, double timediff2) {
+		double r = exponent[i];
+		if (r==0.0)
+			return (timediff2 - timediff1) * scale[i];
+		return scale[i] * Math.exp(timediff1*r) * Math.expm1((timediff2 - timediff1)*r) / r;
+	}
+
 
 	@Override
 	public double getInverseIntensity(double x) {
-		int i=0;
-		double curr_time = 0;
-		double integral = 0;
-		do {
-    		double next_time = getTime(i);
-    		double r = growth[i]; 
-    		
-    		double timediff1 = curr_time;
-    		double timediff2 = next_time;
-    		if (i>0) {
-    			timediff1 -= rateShifts.getArrayValue(i-1);
-    			timediff2 -= rateShifts.getArrayValue(i-1);
-    		}
-
-    		double old_diff = x-integral;
-    		
-    		if (r==0.0) {
-        		if (isNeInput.get())
-        			integral += (next_time-curr_time)/Math.exp(Ne.getArrayValue(i) + cases.getArrayValue(i));
-        		else
-        			integral += (next_time-curr_time)*Math.exp(Ne.getArrayValue(i));
-    		}else {
-        		if (isNeInput.get())
-        			integral += (Math.exp(timediff2*r) - Math.exp(timediff1*r)) / Math.exp(Ne.getArrayValue(i) + cases.getArrayValue(i))/r;
-        		else
-        			integral -= Math.exp(Ne.getArrayValue(i))/r *(Math.exp(-r*timediff2) -Math.exp(-r*timediff1));
-    		}
-    		
-    		double diff = x-integral;
-    		
-    		if (diff<0) {
-    	        if (r == 0.0) {
-            		if (isNeInput.get())
-            			return Math.exp(Ne.getArrayValue(i) + cases.getArrayValue(i)) * old_diff + curr_time;
-            		else
-            			return old_diff/Math.exp(Ne.getArrayValue(i)) + curr_time;
-    	        } else {
-            		if (isNeInput.get())
-            			return Math.log(1.0 + Math.exp(Ne.getArrayValue(i) + cases.getArrayValue(i)) * old_diff * r) / r + curr_time;
-            		else
-            			return Math.log(1.0 + Math.exp(Ne.getArrayValue(i)) * old_diff * r) / -r + curr_time;
-    	        }
-    		}
-    		
-    		curr_time = next_time;
-    		i++;
-		} while (i<rateShifts.getDimension());
+		final int dim = grid.getDimension();
+		// the intensity jumps to infinity at the last rate shift
+		if (x >= cumulative[dim])
+			return grid.getTime(dim-1);
+
+		// find the last epoch that starts at an intensity below x
+		int lower = 0, upper = dim-1;
+		while (lower < upper) {
+			int mid = (lower + upper + 1) >>> 1;
+			if (cumulative[mid] <= x)
+				lower = mid;
+			else
+				upper = mid - 1;
+		}
 
-		
-		return Double.NEGATIVE_INFINITY;
-    	
-    	
+		double diff = x - cumulative[lower];
+		double r = exponent[lower];
+		if (r == 0.0)
+			return diff / scale[lower] + getEpochStart(lower);
+		return Math.log1p(diff * r / scale[lower]) / r + getEpochStart(lower);
 	}
 	
-	private int getIntervalNr(double t) {
-		// check which interval t + offset is in
-		for (int i = 0; i < rateShifts.getDimension(); i++)
-			if (t<rateShifts.getArrayValue(i))
-				return i;
-		
-		// after the last interval, just keep using the last element
-		return rateShifts.getDimension();					
-	}
 
-	private double getTime(int i) {
-		return rateShifts.getArrayValue(i);
+	private double getEpochStart(int i) {
+		return i == 0 ? 0.0 : grid.getTime(i-1);
 	}
 
 	@Override
 	public double getIntensity(double t) {
-		return getIntegral(0,t);
+		int i = grid.getEpoch(t);
+		if (i >= grid.getDimension())
+			return Double.POSITIVE_INFINITY;
+		return getIntensity(t, i);
+	}
+
+	private double getIntensity(double t, int i) {
+		return cumulative[i] + getSegmentIntegral(i, 0.0, t - getEpochStart(i));
 	}
 	
-	// computes the Ne's at the break points
+	// computes the growth rates and integrals of all epochs
 	private void recalculateNe() {
-		growth = new double[rateShifts.getDimension()];
-		double curr_time = 0.0;
-		for (int i = 1; i < Ne.getDimension(); i++) {
-			growth[i-1] = ((Ne.getArrayValue(i-1) + cases.getArrayValue(i-1)) - (Ne.getArrayValue(i)+ cases.getArrayValue(i)))/(rateShifts.getArrayValue(i-1)-curr_time);
-			curr_time = rateShifts.getArrayValue(i-1);
+		final int dim = grid.getDimension();
+		if (growth == null || growth.length != dim) {
+			growth = new double[dim];
+			popSize = new double[dim];
+			scale = new double[dim];
+			exponent = new double[dim];
+			segment = new double[dim];
+			cumulative = new double[dim+1];
+			growth_stored = new double[dim];
+			storedPopSize = new double[dim];
+			storedScale = new double[dim];
+			storedExponent = new double[dim];
+			storedSegment = new double[dim];
+			storedCumulative = new double[dim+1];
 		}
+		for (int i = 0; i < dim; i++)
+			updateEpoch(i);
+		updateCumulative(0);
 		NesKnown = true;
 	}
 
+	// only the epochs next to the elements of Ne or cases that changed have to be updated
+	private void updateDirtyEpochs() {
+		final int dim = grid.getDimension();
+		int first = -1;
+		int last = -1;
+		for (int i = 0; i < Ne.getDimension(); i++) {
+			if (Ne.isDirty(i) || cases.isDirty(i)) {
+				// epoch i-1 ends at element i, it may already have been updated
+				if (i > 0 && last != i-1)
+					updateEpoch(i-1);
+				if (i < dim)
+					updateEpoch(i);
+				last = i;
+				if (first < 0)
+					first = Math.max(i-1, 0);
+			}
+		}
+		if (first >= 0)
+			updateCumulative(first);
+		else if (Ne.somethingIsDirty() || cases.somethingIsDirty())
+			// changed as a whole, e.g. by scaling all elements, without flagging single elements
+			recalculateNe();
+	}
+
+	// growth rate, Ne and integrand of epoch i, the value of the integrand is either 1/Ne or the rate
+	private void updateEpoch(int i) {
+		double logNe = Ne.getArrayValue(i) + cases.getArrayValue(i);
+		double length = grid.getTime(i) - getEpochStart(i);
+		growth[i] = (logNe - (Ne.getArrayValue(i+1) + cases.getArrayValue(i+1)))/length;
+		popSize[i] = Math.exp(logNe);
+		if (isNe) {
+			scale[i] = 1.0/popSize[i];
+			exponent[i] = growth[i];
+		} else {
+			scale[i] = Math.exp(Ne.getArrayValue(i));
+			exponent[i] = -growth[i];
+		}
+		segment[i] = getSegmentIntegral(i, 0.0, length);
+	}
+
+	// the integrals up to the epochs after from are sums of segment integrals, which do not have to be recomputed
+	private void updateCumulative(int from) {
+		for (int i = from; i < segment.length; i++)
+			cumulative[i+1] = cumulative[i] + segment[i];
+	}
+
 	@Override
 	public boolean requiresRecalculation() {
-		recalculateNe();
+		if (grid.update() || growth.length != grid.getDimension())
+			recalculateNe();
+		else
+			updateDirtyEpochs();
+		updateDirtyWindow();
 		return super.requiresRecalculation();
 	}
 	
+	@Override
+	public double[] getShiftTimes() {
+		return grid.getTimes();
+	}
+
+	@Override
+	public double getDirtyStart() {
+		return dirtyStart;
+	}
+
+	@Override
+	public double getDirtyEnd() {
+		return dirtyEnd;
+	}
+
+	// finds the time window affected by the elements that changed in this proposal
+	private void updateDirtyWindow() {
+		dirtyStart = Double.POSITIVE_INFINITY;
+		dirtyEnd = Double.NEGATIVE_INFINITY;
+		if (!rateShifts.somethingIsDirty()) {
+			for (int i = 0; i < Ne.getDimension(); i++) {
+				if (Ne.isDirty(i) || cases.isDirty(i)) {
+					dirtyStart = Math.min(dirtyStart, DirtyTimeWindow.getEpochStart(rateShifts, Math.max(i-1, 0)));
+					dirtyEnd = Math.max(dirtyEnd, DirtyTimeWindow.getEpochEnd(rateShifts, i));
+				}
+			}
+		}
+		// the change cannot be attributed to single elements, so everything is dirty
+		if (dirtyStart > dirtyEnd) {
+			dirtyStart = Double.NEGATIVE_INFINITY;
+			dirtyEnd = Double.POSITIVE_INFINITY;
+		}
+	}
+
 	@Override
 	public void store() {
-		growth_stored = new double[growth.length];
+		grid.store();
 		System.arraycopy(growth, 0, growth_stored, 0, growth.length);
+		System.arraycopy(popSize, 0, storedPopSize, 0, popSize.length);
+		System.arraycopy(scale, 0, storedScale, 0, scale.length);
+		System.arraycopy(exponent, 0, storedExponent, 0, exponent.length);
+		System.arraycopy(segment, 0, storedSegment, 0, segment.length);
+		System.arraycopy(cumulative, 0, storedCumulative, 0, cumulative.length);
 		super.store();
 	}
 	
 	@Override
 	public void restore() {
-		System.arraycopy(growth_stored, 0, growth, 0, growth_stored.length);
+		grid.restore();
+		double[] tmp = growth;
+		growth = growth_stored;
+		growth_stored = tmp;
+		tmp = popSize;
+		popSize = storedPopSize;
+		storedPopSize = tmp;
+		tmp = scale;
+		scale = storedScale;
+		storedScale = tmp;
+		tmp = exponent;
+		exponent = storedExponent;
+		storedExponent = tmp;
+		tmp = segment;
+		segment = storedSegment;
+		storedSegment = tmp;
+		tmp = cumulative;
+		cumulative = storedCumulative;
+		storedCumulative = tmp;
 		super.restore();
 	}
 
@@ -0,0 +1,26 @@
+package nab.skygrid;
+
+/**
+ * Population functions on a grid of rate shifts that can be evaluated with an
+ * EpochCursor, such that sweeping over sorted times only walks the grid once.
+ *
+ * @author Nicola F. Mueller
+ */
+public interface SweepablePopulationFunction {
+
+	/**
+	 * same as getPopSize(t), looking up the epoch of t with the cursor
+	 */
+	double getPopSize(double t, EpochCursor cursor);
+
+	/**
+	 * same as getIntegral(start, finish), looking up the epochs with the cursor
+	 */
+	double getIntegral(double start, double finish, EpochCursor cursor);
+
+	/**
+	 * @return the times at which the population function changes epoch, in increasing order
+	 */
+	double[] getShiftTimes();
+
+}
@@ -0,0 +1,95 @@
+package nab.skygrid;
+
+import beast.core.parameter.RealParameter;
+
+/**
+ * Keeps the rate shifts of a function of time in a primitive array, such that looking
+ * up the epoch of a time does not go through the parameter for every comparison. The
+ * array is only refreshed when the rate shifts are dirty. Epochs are found by binary
+ * search, or with an EpochCursor when times are looked up in sorted order.
+ * Epoch i lasts until rate shift i, times after the last rate shift are in epoch dim.
+ *
+ * @author Nicola F. Mueller
+ */
+public class TimeGrid {
+
+	final RealParameter rateShifts;
+	double[] times;
+	double[] storedTimes;
+
+	public TimeGrid(RealParameter rateShifts) {
+		this.rateShifts = rateShifts;
+		times = rateShifts.getDoubleValues();
+		storedTimes = new double[times.length];
+	}
+
+	/**
+	 * refreshes the shift times if the rate shifts changed, to be called from requiresRecalculation
+	 * @return true if the shift times were refreshed
+	 */
+	public boolean update() {
+		if (!rateShifts.somethingIsDirty() && times.length == rateShifts.getDimension())
+			return false;
+		if (times.length != rateShifts.getDimension()) {
+			times = new double[rateShifts.getDimension()];
+			storedTimes = new double[times.length];
+		}
+		for (int i = 0; i < times.length; i++)
+			times[i] = rateShifts.getArrayValue(i);
+		return true;
+	}
+
+	/**
+	 * @return the index of the first rate shift that is larger than t, or the number of rate shifts if there is none
+	 */
+	public int getEpoch(double t) {
+		return getEpoch(times, t);
+	}
+
+	/**
+	 * same as getEpoch(t), starting from the epoch the cursor is at
+	 */
+	public int seek(double t, EpochCursor cursor) {
+		return cursor.seek(times, t);
+	}
+
+	static int getEpoch(double[] times, double t) {
+		int lower = 0, upper = times.length;
+		while (lower < upper) {
+			int mid = (lower + upper) >>> 1;
+			if (t < times[mid])
+				upper = mid;
+			else
+				lower = mid + 1;
+		}
+		return lower;
+	}
+
+	public double getTime(int i) {
+		return times[i];
+	}
+
+	public int getDimension() {
+		return times.length;
+	}
+
+	/**
+	 * @return the shift times, which must not be modified
+	 */
+	public double[] getTimes() {
+		return times;
+	}
+
+	public void store() {
+		if (storedTimes.length != times.length)
+			storedTimes = new double[times.length];
+		System.arraycopy(times, 0, storedTimes, 0, times.length);
+	}
+
+	public void restore() {
+		double[] tmp = times;
+		times = storedTimes;
+		storedTimes = tmp;
+	}
+
+}
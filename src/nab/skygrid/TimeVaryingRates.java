@@ -15,7 +15,7 @@ import beast.core.parameter.RealParameter;
  * @author Nicola F. Mueller
  */
 @Description("Rate with time vector.")
-public class TimeVaryingRates extends CalculationNode {
+public class TimeVaryingRates extends CalculationNode implements DirtyTimeWindow {
 	
     final public Input<RealParameter> rateInput = new Input<>("rate",
             "Nes over time in log space", Input.Validate.REQUIRED);
@@ -28,111 +28,180 @@ public class TimeVaryingRates extends CalculationNode {
 
     RealParameter rate;
     RealParameter rateShifts;
+    TimeGrid grid;
     
+    boolean continuous;
     double[] growth;
     double[] growth_stored;
+    // integral over the rate of every epoch but the last and from time 0 to the start of every epoch
+    double[] segment, cumulative;
+    double[] storedSegment, storedCumulative;
+
+    // time window over which the values changed in the current proposal
+    double dirtyStart = Double.NEGATIVE_INFINITY;
+    double dirtyEnd = Double.POSITIVE_INFINITY;
 
 
     @Override
 	public void initAndValidate() {
     	rate = rateInput.get();
     	rateShifts = rateShiftsInput.get();
+    	grid = new TimeGrid(rateShifts);
     	rate.setDimension(rateShifts.getDimension());  
+    	continuous = varyTimesContinuously.get();
     	recalculateRate();
     }
 
-	public double getRate(double t) {		
+	public double getRate(double t) {
+		return getRate(t, new EpochCursor());
+	}
+
+	/**
+	 * same as getRate(t), looking up the epoch of t with the cursor
+	 */
+	public double getRate(double t, EpochCursor cursor) {
 		
-		int intervalnr = getIntervalNr(t);
-		if (intervalnr>=rateShifts.getDimension()) {
+		int intervalnr = grid.seek(t, cursor);
+		if (intervalnr>=grid.getDimension()) {
 			return Double.POSITIVE_INFINITY;
 		}		
 		
 		double timediff = t;
 		if (intervalnr>0)
-			timediff -= rateShifts.getArrayValue(intervalnr-1);
+			timediff -= grid.getTime(intervalnr-1);
 
-//		return rate.getArrayValue(intervalnr)-growth[intervalnr]*timediff;
-		return rate.getArrayValue(intervalnr);
+		return rate.getArrayValue(intervalnr)-growth[intervalnr]*timediff;
 	}
 	
 	public double getMeanRate(double start, double finish) {
+		return getMeanRate(start, finish, new EpochCursor());
+	}
+
+	/**
+	 * same as getMeanRate(start, finish), looking up the epochs with the cursor
+	 */
+	public double getMeanRate(double start, double finish, EpochCursor cursor) {
     	if (start==finish)
     		return 0.0;
     	
     	// get the interval "start" is in
-    	int first_int = getIntervalNr(start);
+    	int first_int = grid.seek(start, cursor);
     	// get the interval "finish" is in
-    	int last_int = getIntervalNr(finish);
+    	int last_int = grid.seek(finish, cursor);
     	
-    	double weighted = 0.0;
-    	double curr_time = start; 
-    	double tot_time = 0.0;
-
-    	for (int i = first_int; i <= last_int;i++) {
-    		if (i>=rateShifts.getDimension()) {
-    			return Double.POSITIVE_INFINITY;
-    		}    		
-    		double next_time = Math.min(getTime(i), finish);
-    		
-    		double timediff1 = curr_time;
-    		double timediff2 = next_time;
-    		if (i>0) {
-    			timediff1 -= rateShifts.getArrayValue(i-1);
-    			timediff2 -= rateShifts.getArrayValue(i-1);
-    		}
-
-//    		weighted +=  (timediff2-timediff1)*((rate.getArrayValue(i) - growth[i]*timediff2) + (rate.getArrayValue(i) - growth[i]*timediff1));
-
-    		weighted +=  (next_time - curr_time)*rate.getArrayValue(i);
-    		curr_time = next_time;
-    		tot_time += (timediff2-timediff1);
+    	if (last_int>=grid.getDimension())
+    		return Double.POSITIVE_INFINITY;
+    	if (first_int==last_int) {
+    		double epochStart = getEpochStart(first_int);
+    		return getSegmentIntegral(first_int, start - epochStart, finish - epochStart)/(finish - start);
     	}
-    	return weighted/tot_time;
+    	return (getIntegral(finish, last_int) - getIntegral(start, first_int))/(finish - start);
     }
 
+	// integral over the rate from time 0 to t, with t in epoch i
+	private double getIntegral(double t, int i) {
+		return cumulative[i] + getSegmentIntegral(i, 0.0, t - getEpochStart(i));
+	}
 
-	private int getIntervalNr(double t) {
-		// check which interval t + offset is in
-		for (int i = 0; i < rateShifts.getDimension(); i++)
-			if (t<rateShifts.getArrayValue(i))
-				return i;
-		
-		// after the last interval, just keep using the last element
-		return rateShifts.getDimension();					
+	// integral over the rate in epoch i between the times timediff1 and timediff2 after the start of the epoch
+	private double getSegmentIntegral(int i, double timediff1, double timediff2) {
+		return (timediff2 - timediff1) * (rate.getArrayValue(i) - growth[i]*(timediff1 + timediff2)/2);
 	}
 
-	private double getTime(int i) {
-		return rateShifts.getArrayValue(i);
+	private double getEpochStart(int i) {
+		return i == 0 ? 0.0 : grid.getTime(i-1);
 	}
 	
-	// computes the Ne's at the break points
+	// computes the slopes between the rates at the break points if the rates are continuous and the
+	// integrals over the epochs. Rate i is the value at the start of epoch i, the last epoch is constant
 	private void recalculateRate() {
-		growth = new double[rateShifts.getDimension()];
-		double curr_time = 0.0;
-		for (int i = 1; i < rate.getDimension(); i++) {
-			growth[i-1] = (rate.getArrayValue(i-1)- rate.getArrayValue(i))/(rateShifts.getArrayValue(i-1)-curr_time);
-			curr_time = rateShifts.getArrayValue(i-1);
+		final int dim = grid.getDimension();
+		if (growth == null || growth.length != dim) {
+			growth = new double[dim];
+			segment = new double[dim];
+			cumulative = new double[dim+1];
+			growth_stored = new double[dim];
+			storedSegment = new double[dim];
+			storedCumulative = new double[dim+1];
+		}
+		for (int i = 0; i < dim; i++) {
+			double length = grid.getTime(i) - getEpochStart(i);
+			if (continuous && i+1 < rate.getDimension())
+				growth[i] = (rate.getArrayValue(i)- rate.getArrayValue(i+1))/length;
+			else
+				growth[i] = 0.0;
+			segment[i] = getSegmentIntegral(i, 0.0, length);
+			cumulative[i+1] = cumulative[i] + segment[i];
 		}
 	}
 	
 	@Override
 	public boolean requiresRecalculation() {
+		grid.update();
 		recalculateRate();
+		updateDirtyWindow();
 		return super.requiresRecalculation();
 	}
 
+	/**
+	 * @return the times at which the rate changes epoch, in increasing order
+	 */
+	public double[] getShiftTimes() {
+		return grid.getTimes();
+	}
+
+	@Override
+	public double getDirtyStart() {
+		return dirtyStart;
+	}
+
+	@Override
+	public double getDirtyEnd() {
+		return dirtyEnd;
+	}
+
+	// finds the time window affected by the elements that changed in this proposal
+	private void updateDirtyWindow() {
+		dirtyStart = Double.POSITIVE_INFINITY;
+		dirtyEnd = Double.NEGATIVE_INFINITY;
+		if (!rateShifts.somethingIsDirty()) {
+			for (int i = 0; i < rate.getDimension(); i++) {
+				if (rate.isDirty(i)) {
+					// with interpolation, rate i is also the end point of epoch i-1
+					dirtyStart = Math.min(dirtyStart, DirtyTimeWindow.getEpochStart(rateShifts, continuous ? Math.max(i-1, 0) : i));
+					dirtyEnd = Math.max(dirtyEnd, DirtyTimeWindow.getEpochEnd(rateShifts, i));
+				}
+			}
+		}
+		// the change cannot be attributed to single elements, so everything is dirty
+		if (dirtyStart > dirtyEnd) {
+			dirtyStart = Double.NEGATIVE_INFINITY;
+			dirtyEnd = Double.POSITIVE_INFINITY;
+		}
+	}
+
 
 	@Override
 	public void store() {
-		growth_stored = new double[growth.length];
+		grid.store();
 		System.arraycopy(growth, 0, growth_stored, 0, growth.length);
+		System.arraycopy(segment, 0, storedSegment, 0, segment.length);
+		System.arraycopy(cumulative, 0, storedCumulative, 0, cumulative.length);
 		super.store();
 	}
 	
 	@Override
 	public void restore() {
-		System.arraycopy(growth_stored, 0, growth, 0, growth_stored.length);
+		grid.restore();
+		double[] tmp = growth;
+		growth = growth_stored;
+		growth_stored = tmp;
+		tmp = segment;
+		segment = storedSegment;
+		storedSegment = tmp;
+		tmp = cumulative;
+		cumulative = storedCumulative;
+		storedCumulative = tmp;
 		super.restore();
 	}
 